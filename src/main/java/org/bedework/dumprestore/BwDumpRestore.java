@@ -93,7 +93,11 @@ import org.bedework.calsvci.CalSvcI;
 import org.bedework.calsvci.CalSvcIPars;
 import org.bedework.calsvci.CalendarsI.CheckSubscriptionResult;
 import org.bedework.dumprestore.dump.Dump;
+import org.bedework.dumprestore.dump.DumpGlobals;
+import org.bedework.dumprestore.dump.DumpOutput;
 import org.bedework.dumprestore.restore.Restore;
+import org.bedework.dumprestore.restore.RestoreGlobals;
+import org.bedework.dumprestore.restore.TableStores;
 import org.bedework.indexer.BwIndexerMBean;
 
 import com.idega.hibernate.SessionFactoryUtil;
@@ -146,10 +150,48 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 
 	private String dataIn;
 
+	private boolean staxRestore;
+
+	private int restoreBatchSize;
+
+	private String sectionBatchSizes;
+
+	private String statelessSections;
+
+	private int principalCacheSize = RestoreGlobals.defaultPrincipalCacheSize;
+
+	private int restoreEventThreads = 1;
+
+	private boolean restorePipeline;
+
+	private String restoreCheckpoint;
+
+	private boolean restoreResume;
+
+	private int restoreTableSpill = TableStores.defaultSpillThreshold;
+
+	private int restoreTableMapped = TableStores.defaultMappedThreshold;
+
+	private String restoreTableDir;
+
+	private boolean validateSchema;
+
 	private String dataOut;
 
 	private String dataOutPrefix;
 
+	private String dumpCompression = DumpCompression.none;
+
+	private int dumpBufferSize = DumpOutput.defaultBufferSize;
+
+	private boolean dumpBackgroundWriter;
+
+	private boolean parallelDump;
+
+	private int dumpThreads = 1;
+
+	private int dumpMaxWorkers = DumpGlobals.defaultMaxWorkers;
+
 	private List<ExternalSubInfo> externalSubs;
 
 	private String curSvciOwner;
@@ -321,6 +363,136 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 		return dataIn;
 	}
 
+	@Override
+	public void setStaxRestore(final boolean val) {
+		staxRestore = val;
+	}
+
+	@Override
+	public boolean getStaxRestore() {
+		return staxRestore;
+	}
+
+	@Override
+	public void setRestoreBatchSize(final int val) {
+		restoreBatchSize = val;
+	}
+
+	@Override
+	public int getRestoreBatchSize() {
+		return restoreBatchSize;
+	}
+
+	@Override
+	public void setSectionBatchSizes(final String val) {
+		sectionBatchSizes = val;
+	}
+
+	@Override
+	public String getSectionBatchSizes() {
+		return sectionBatchSizes;
+	}
+
+	@Override
+	public void setStatelessSections(final String val) {
+		statelessSections = val;
+	}
+
+	@Override
+	public String getStatelessSections() {
+		return statelessSections;
+	}
+
+	@Override
+	public void setPrincipalCacheSize(final int val) {
+		principalCacheSize = val;
+	}
+
+	@Override
+	public int getPrincipalCacheSize() {
+		return principalCacheSize;
+	}
+
+	@Override
+	public void setRestoreEventThreads(final int val) {
+		restoreEventThreads = val;
+	}
+
+	@Override
+	public int getRestoreEventThreads() {
+		return restoreEventThreads;
+	}
+
+	@Override
+	public void setRestorePipeline(final boolean val) {
+		restorePipeline = val;
+	}
+
+	@Override
+	public boolean getRestorePipeline() {
+		return restorePipeline;
+	}
+
+	@Override
+	public void setRestoreCheckpoint(final String val) {
+		restoreCheckpoint = val;
+	}
+
+	@Override
+	public String getRestoreCheckpoint() {
+		return restoreCheckpoint;
+	}
+
+	@Override
+	public void setRestoreResume(final boolean val) {
+		restoreResume = val;
+	}
+
+	@Override
+	public boolean getRestoreResume() {
+		return restoreResume;
+	}
+
+	@Override
+	public void setRestoreTableSpill(final int val) {
+		restoreTableSpill = val;
+	}
+
+	@Override
+	public int getRestoreTableSpill() {
+		return restoreTableSpill;
+	}
+
+	@Override
+	public void setRestoreTableMapped(final int val) {
+		restoreTableMapped = val;
+	}
+
+	@Override
+	public int getRestoreTableMapped() {
+		return restoreTableMapped;
+	}
+
+	@Override
+	public void setRestoreTableDir(final String val) {
+		restoreTableDir = val;
+	}
+
+	@Override
+	public String getRestoreTableDir() {
+		return restoreTableDir;
+	}
+
+	@Override
+	public void setValidateSchema(final boolean val) {
+		validateSchema = val;
+	}
+
+	@Override
+	public boolean getValidateSchema() {
+		return validateSchema;
+	}
+
 	@Override
 	public void setDataOut(final String val) {
 		dataOut = val;
@@ -341,6 +513,66 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 		return dataOutPrefix;
 	}
 
+	@Override
+	public void setDumpCompression(final String val) {
+		dumpCompression = val;
+	}
+
+	@Override
+	public String getDumpCompression() {
+		return dumpCompression;
+	}
+
+	@Override
+	public void setDumpBufferSize(final int val) {
+		dumpBufferSize = val;
+	}
+
+	@Override
+	public int getDumpBufferSize() {
+		return dumpBufferSize;
+	}
+
+	@Override
+	public void setDumpBackgroundWriter(final boolean val) {
+		dumpBackgroundWriter = val;
+	}
+
+	@Override
+	public boolean getDumpBackgroundWriter() {
+		return dumpBackgroundWriter;
+	}
+
+	@Override
+	public void setParallelDump(final boolean val) {
+		parallelDump = val;
+	}
+
+	@Override
+	public boolean getParallelDump() {
+		return parallelDump;
+	}
+
+	@Override
+	public void setDumpThreads(final int val) {
+		dumpThreads = val;
+	}
+
+	@Override
+	public int getDumpThreads() {
+		return dumpThreads;
+	}
+
+	@Override
+	public void setDumpMaxWorkers(final int val) {
+		dumpMaxWorkers = val;
+	}
+
+	@Override
+	public int getDumpMaxWorkers() {
+		return dumpMaxWorkers;
+	}
+
 	@Override
 	public boolean testSchemaValid() {
 		return true;
@@ -406,6 +638,18 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 			info("Restore file: " + getDataIn());
 
 			restorer.setFilename(getDataIn());
+			restorer.setStaxParser(getStaxRestore());
+			restorer.setBatchSize(getRestoreBatchSize());
+			restorer.setSectionBatchSizes(getSectionBatchSizes());
+			restorer.setStatelessSections(getStatelessSections());
+			restorer.setPrincipalCacheSize(getPrincipalCacheSize());
+			restorer.setEventThreads(getRestoreEventThreads());
+			restorer.setPipeline(getRestorePipeline());
+			restorer.setCheckpoint(getRestoreCheckpoint());
+			restorer.setResume(getRestoreResume());
+			restorer.setTableSpill(getRestoreTableSpill());
+			restorer.setTableMapped(getRestoreTableMapped());
+			restorer.setTableDir(getRestoreTableDir());
 
 			restorer.open();
 
@@ -445,6 +689,52 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 		return infoLines;
 	}
 
+	@Override
+	public synchronized List<String> validateData() {
+		InfoLines infoLines = new InfoLines();
+
+		try {
+			long startTime = System.currentTimeMillis();
+
+			Restore restorer = new Restore(SessionFactoryUtil.getSessionFactory());
+
+			String[] args = new String[] { "-appname", appname };
+
+			restorer.getConfigProperties(new Args(args));
+
+			infoLines.addLn("Validate file: " + getDataIn());
+			info("Validate file: " + getDataIn());
+
+			restorer.setFilename(getDataIn());
+			restorer.setStaxParser(getStaxRestore());
+			restorer.setValidate(true);
+			restorer.setValidateSchema(getValidateSchema());
+
+			restorer.open();
+
+			restorer.doRestore();
+
+			restorer.close();
+
+			restorer.stats(infoLines);
+
+			long millis = System.currentTimeMillis() - startTime;
+			long seconds = millis / 1000;
+			long minutes = seconds / 60;
+			seconds -= (minutes * 60);
+
+			infoLines.addLn("Elapsed time: " + minutes + ":"
+					+ Restore.twoDigits(seconds));
+
+			infoLines.add("Validation complete" + "\n");
+		} catch (Throwable t) {
+			error(t);
+			infoLines.exceptionMsg(t);
+		}
+
+		return infoLines;
+	}
+
 	@Override
 	public List<String> checkExternalSubs() {
 		InfoLines infoLines = new InfoLines();
@@ -579,16 +869,27 @@ public class BwDumpRestore implements BwDumpRestoreMBean {
 			/* append "yyyyMMddTHHmmss" */
 			fname.append(DateTimeUtil.isoDateTime());
 			fname.append(".xml");
+			fname.append(DumpCompression.suffix(getDumpCompression()));
 
 			d.setFilename(fname.toString());
+			d.setCompression(getDumpCompression());
+			d.setOutputBufferSize(getDumpBufferSize());
+			d.setBackgroundWriter(getDumpBackgroundWriter());
+			d.setParallelSections(getParallelDump());
+			d.setDumpThreads(getDumpThreads());
+			d.setMaxWorkers(getDumpMaxWorkers());
 
-			d.open();
+			try {
+				d.open();
 
-			d.doDump();
+				d.doDump();
 
-			externalSubs = d.getExternalSubs();
+				externalSubs = d.getExternalSubs();
 
-			d.close();
+				d.close();
+			} finally {
+				d.abort();
+			}
 
 			d.stats(infoLines);
 
@@ -151,6 +151,156 @@ public interface BwDumpRestoreMBean {
    */
   public String getDataIn();
 
+  /** Parse the restore data with a StAX parser rather than the digester?
+   *
+   * @param val
+   */
+  public void setStaxRestore(boolean val);
+
+  /**
+   * @return true if the restore data is parsed with a StAX parser
+   */
+  public boolean getStaxRestore();
+
+  /** Number of entities restored in a single transaction. 0 for a
+   * transaction per entity.
+   *
+   * @param val
+   */
+  public void setRestoreBatchSize(int val);
+
+  /**
+   * @return Number of entities restored in a single transaction
+   */
+  public int getRestoreBatchSize();
+
+  /** Batch sizes for named restore sections, e.g. "users=500,events=50".
+   * These override the restore batch size.
+   *
+   * @param val
+   */
+  public void setSectionBatchSizes(String val);
+
+  /**
+   * @return Batch sizes for named restore sections
+   */
+  public String getSectionBatchSizes();
+
+  /** Restore sections inserted through a stateless session, e.g.
+   * "users,categories". Only users, categories, locations and contacts.
+   *
+   * @param val
+   */
+  public void setStatelessSections(String val);
+
+  /**
+   * @return Restore sections inserted through a stateless session
+   */
+  public String getStatelessSections();
+
+  /** Maximum number of principals held in memory during restore
+   *
+   * @param val
+   */
+  public void setPrincipalCacheSize(int val);
+
+  /**
+   * @return Maximum number of principals held in memory during restore
+   */
+  public int getPrincipalCacheSize();
+
+  /** Number of threads restoring events
+   *
+   * @param val
+   */
+  public void setRestoreEventThreads(int val);
+
+  /**
+   * @return Number of threads restoring events
+   */
+  public int getRestoreEventThreads();
+
+  /** Write to the database on a separate thread while parsing?
+   *
+   * @param val
+   */
+  public void setRestorePipeline(boolean val);
+
+  /**
+   * @return true if restore writes are done on a separate thread
+   */
+  public boolean getRestorePipeline();
+
+  /** File recording restore progress - full path. Null or empty for no
+   * checkpoints.
+   *
+   * @param val
+   */
+  public void setRestoreCheckpoint(String val);
+
+  /**
+   * @return name of the checkpoint file
+   */
+  public String getRestoreCheckpoint();
+
+  /** Resume an interrupted restore from the checkpoint?
+   *
+   * @param val
+   */
+  public void setRestoreResume(boolean val);
+
+  /**
+   * @return true if the restore resumes from the checkpoint
+   */
+  public boolean getRestoreResume();
+
+  /** Number of entries in one of the large restore tables before it is
+   * moved off the heap. 0 to keep them on the heap.
+   *
+   * @param val
+   */
+  public void setRestoreTableSpill(int val);
+
+  /**
+   * @return entries before a table is moved off the heap
+   */
+  public int getRestoreTableSpill();
+
+  /** Number of entries in one of the large restore tables before it is
+   * moved to a memory mapped file. 0 to keep them in memory.
+   *
+   * @param val
+   */
+  public void setRestoreTableMapped(int val);
+
+  /**
+   * @return entries before a table is moved to a file
+   */
+  public int getRestoreTableMapped();
+
+  /** Directory for the table files - full path. Null or empty for the
+   * temp directory.
+   *
+   * @param val
+   */
+  public void setRestoreTableDir(String val);
+
+  /**
+   * @return directory for the table files
+   */
+  public String getRestoreTableDir();
+
+  /** Should validateData also check the data against the schema?
+   *
+   * @param val
+   */
+  public void setValidateSchema(boolean val);
+
+  /**
+   * @return true if validateData checks against the schema
+   */
+  public boolean getValidateSchema();
+
   /** XML data output directory name - full path. Used for data restore
    *
    * @param val
@@ -173,6 +323,74 @@ public interface BwDumpRestoreMBean {
    */
   public String getDataOutPrefix();
 
+  /** Compression for data dumps - none or gzip. The suffix is added to the
+   * file name.
+   *
+   * @param val
+   */
+  public void setDumpCompression(String val);
+
+  /**
+   * @return Compression for data dumps
+   */
+  public String getDumpCompression();
+
+  /** Size in bytes of the dump output buffers
+   *
+   * @param val
+   */
+  public void setDumpBufferSize(int val);
+
+  /**
+   * @return Size in bytes of the dump output buffers
+   */
+  public int getDumpBufferSize();
+
+  /** Write the dump output on a background thread?
+   *
+   * @param val
+   */
+  public void setDumpBackgroundWriter(boolean val);
+
+  /**
+   * @return true if the dump output is written on a background thread
+   */
+  public boolean getDumpBackgroundWriter();
+
+  /** Dump each section with its own worker and session?
+   *
+   * @param val
+   */
+  public void setParallelDump(boolean val);
+
+  /**
+   * @return true if sections are dumped in parallel
+   */
+  public boolean getParallelDump();
+
+  /** Number of workers dumping the events section
+   *
+   * @param val
+   */
+  public void setDumpThreads(int val);
+
+  /**
+   * @return Number of workers dumping the events section
+   */
+  public int getDumpThreads();
+
+  /** Most workers, each with its own session, dumping at once. Covers the
+   * parallel sections and the events workers.
+   *
+   * @param val
+   */
+  public void setDumpMaxWorkers(int val);
+
+  /**
+   * @return Most workers dumping at once
+   */
+  public int getDumpMaxWorkers();
+
   /* ========================================================================
    * Operations
    * ======================================================================== */
@@ -201,6 +419,13 @@ public interface BwDumpRestoreMBean {
    */
   public List<String> restoreData();
 
+  /** Parses the data from the DataIn path as restoreData would but writes
+   * nothing to the db. Reports unresolved references and other problems.
+   *
+   * @return Completion messages and stats
+   */
+  public List<String> validateData();
+
   /** Check external subscriptions discovered during the restore. This will
    * cause them to restore the subscription if necessary.
    *
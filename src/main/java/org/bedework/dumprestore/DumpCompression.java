@@ -0,0 +1,122 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Compression of dump files. A dump may be written compressed and the
+ * restore recognizes compressed input from its content and decompresses
+ * while it parses.
+ *
+ * @version 1.0
+ */
+public class DumpCompression {
+  /** No compression */
+  public static final String none = "none";
+
+  /** gzip compression */
+  public static final String gzip = "gzip";
+
+  /** File suffix for gzip compression */
+  public static final String gzipSuffix = ".gz";
+
+  private static final int bufferSize = 65536;
+
+  /**
+   * @param val - compression name or null
+   * @return true if we support the named compression
+   */
+  public static boolean isValid(final String val) {
+    return (val == null) || none.equals(val) || gzip.equals(val);
+  }
+
+  /** Compression implied by a file name.
+   *
+   * @param fileName
+   * @return compression name - none if not recognized
+   */
+  public static String fromFileName(final String fileName) {
+    if ((fileName != null) && fileName.endsWith(gzipSuffix)) {
+      return gzip;
+    }
+
+    return none;
+  }
+
+  /** File name suffix for the compression.
+   *
+   * @param val - compression name or null
+   * @return suffix - empty for none
+   */
+  public static String suffix(final String val) {
+    if (gzip.equals(val)) {
+      return gzipSuffix;
+    }
+
+    return "";
+  }
+
+  /** Wrap the stream to compress the output.
+   *
+   * @param out
+   * @param val - compression name or null
+   * @return stream to write to
+   * @throws IOException
+   */
+  public static OutputStream compress(final OutputStream out,
+                                      final String val) throws IOException {
+    if (gzip.equals(val)) {
+      return new GZIPOutputStream(out, bufferSize);
+    }
+
+    return out;
+  }
+
+  /** Look at the start of the stream and wrap it to decompress if it is
+   * compressed.
+   *
+   * @param in
+   * @return stream to read from
+   * @throws IOException
+   */
+  public static InputStream decompress(final InputStream in) throws IOException {
+    InputStream bin = in;
+
+    if (!bin.markSupported()) {
+      bin = new BufferedInputStream(in, bufferSize);
+    }
+
+    bin.mark(2);
+    int b1 = bin.read();
+    int b2 = bin.read();
+    bin.reset();
+
+    if ((b1 == (GZIPInputStream.GZIP_MAGIC & 0xff)) &&
+        (b2 == (GZIPInputStream.GZIP_MAGIC >> 8))) {
+      return new GZIPInputStream(bin, bufferSize);
+    }
+
+    return bin;
+  }
+}
@@ -34,6 +34,7 @@ import org.hibernate.Transaction;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -515,6 +516,26 @@ public class HibSession implements Serializable {
     }
   }
 
+  /** Set the named parameter with the given Collection
+   *
+   * @param parName     String parameter name
+   * @param parVal      Collection parameter value
+   * @throws CalFacadeException
+   */
+  public void setParameterList(String parName,
+                               Collection parVal) throws CalFacadeException {
+    if (exc != null) {
+      // Didn't hear me last time?
+      throw new CalFacadeException(exc);
+    }
+
+    try {
+      q.setParameterList(parName, parVal);
+    } catch (Throwable t) {
+      handleException(t);
+    }
+  }
+
   /** Return the single object resulting from the query.
    *
    * @return Object          retrieved object or null
@@ -568,6 +589,24 @@ public class HibSession implements Serializable {
     }
   }
 
+  /** Set the maximum number of rows returned by the current query.
+   *
+   * @param val     int max rows
+   * @throws CalFacadeException
+   */
+  public void setMaxResults(int val) throws CalFacadeException {
+    if (exc != null) {
+      // Didn't hear me last time?
+      throw new CalFacadeException(exc);
+    }
+
+    try {
+      q.setMaxResults(val);
+    } catch (Throwable t) {
+      handleException(t);
+    }
+  }
+
   /**
    * @return int number updated
    * @throws CalFacadeException
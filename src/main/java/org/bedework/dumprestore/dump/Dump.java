@@ -83,13 +83,13 @@
 package org.bedework.dumprestore.dump;
 
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.bedework.calfacade.configs.DumpRestoreConfig;
 import org.bedework.calfacade.env.CalOptionsFactory;
 import org.bedework.dumprestore.Defs;
+import org.bedework.dumprestore.DumpCompression;
 import org.bedework.dumprestore.ExternalSubInfo;
 import org.bedework.dumprestore.dump.dumpling.DumpAll;
 import org.hibernate.SessionFactory;
@@ -117,6 +117,14 @@ public class Dump implements Defs {
 	  /* runtime arg -i (id) */
 	  //private String id = "sa";
 
+	  /* runtime arg -compress Compression for the output. Defaults to
+	   * that implied by the file name.
+	   */
+	  private String compression;
+
+	  /* runtime arg -windowsize Number of events held in memory at once */
+	  private int windowSize = HibDump.defaultWindowSize;
+
 	  String indent = "";
 
 	  private DumpGlobals globals = new DumpGlobals();
@@ -153,17 +161,78 @@ public class Dump implements Defs {
 	    fileName = val;
 	  }
 
+	  /**
+	   * @param val - compression for the output - none or gzip. Null to take
+	   *              it from the file name.
+	   * @throws Throwable
+	   */
+	  public void setCompression(final String val) throws Throwable {
+	    if (!DumpCompression.isValid(val)) {
+	      throw new Exception("Unsupported compression " + val);
+	    }
+
+	    compression = val;
+	  }
+
+	  /**
+	   * @param val - number of events held in memory at once. Zero or less
+	   *              loads them all in one go.
+	   */
+	  public void setWindowSize(final int val) {
+	    windowSize = val;
+	  }
+
+	  /**
+	   * @param val - size of the output buffers in bytes
+	   */
+	  public void setOutputBufferSize(final int val) {
+	    globals.outputBufferSize = val;
+	  }
+
+	  /**
+	   * @param val - true to write the output on a background thread
+	   */
+	  public void setBackgroundWriter(final boolean val) {
+	    globals.backgroundWriter = val;
+	  }
+
+	  /**
+	   * @param val - number of workers dumping the events section
+	   */
+	  public void setDumpThreads(final int val) {
+	    globals.dumpThreads = val;
+	  }
+
+	  /**
+	   * @param val - true to dump each section with its own worker
+	   */
+	  public void setParallelSections(final boolean val) {
+	    globals.parallelSections = val;
+	  }
+
+	  /**
+	   * @param val - most workers dumping at once
+	   */
+	  public void setMaxWorkers(final int val) {
+	    globals.maxWorkers = val;
+	  }
+
 	  /**
 	   * @throws Throwable
 	   */
 	  public void open() throws Throwable {
 	    globals.di = new HibDump(cfg);
+	    globals.di.setWindowSize(windowSize);
 
 	    if (fileName == null) {
-	      globals.setOut(new OutputStreamWriter(System.out));
+	      globals.setOut(System.out, DumpCompression.none);
 	    } else {
-	      globals.setOut(new OutputStreamWriter(new FileOutputStream(fileName),
-	                                            "UTF-8"));
+	      String comp = compression;
+	      if (comp == null) {
+	        comp = DumpCompression.fromFileName(fileName);
+	      }
+
+	      globals.setOut(new FileOutputStream(fileName), comp);
 	    }
 	  }
 
@@ -174,6 +243,12 @@ public class Dump implements Defs {
 	    globals.close();
 	  }
 
+	  /** Call in a finally block - stops the output threads if the dump failed.
+	   */
+	  public void abort() {
+	    globals.abort();
+	  }
+
 	  /**
 	   * @throws Throwable
 	   */
@@ -208,12 +283,31 @@ public class Dump implements Defs {
 	        // null arg generated by ant
 	      } else if (args[i].equals("-noarg")) {
 	        // noop
+	      } else if (args[i].equals("-parallel")) {
+	        globals.parallelSections = true;
+	      } else if (args[i].equals("-bgwriter")) {
+	        globals.backgroundWriter = true;
+	      } else if (argpar("-bufsize", args, i)) {
+	        i++;
+	        globals.outputBufferSize = Integer.parseInt(args[i]);
 	      } else if (argpar("-appname", args, i)) {
 	        i++;
 	        // done earlier
 	      } else if (argpar("-f", args, i)) {
 	        i++;
 	        fileName = args[i];
+	      } else if (argpar("-compress", args, i)) {
+	        i++;
+	        setCompression(args[i]);
+	      } else if (argpar("-dumpThreads", args, i)) {
+	        i++;
+	        globals.dumpThreads = Integer.parseInt(args[i]);
+	      } else if (argpar("-maxWorkers", args, i)) {
+	        i++;
+	        globals.maxWorkers = Integer.parseInt(args[i]);
+	      } else if (argpar("-windowsize", args, i)) {
+	        i++;
+	        windowSize = Integer.parseInt(args[i]);
 	      } else if (argpar("-i", args, i)) {
 	        i++;
 	        //id = args[i];
@@ -331,6 +425,8 @@ public class Dump implements Defs {
 	        d.close();
 	      } catch (Throwable t1) {
 	        t1.printStackTrace();
+	      } finally {
+	        d.abort();
 	      }
 	    }
 
@@ -48,13 +48,24 @@ package org.bedework.dumprestore.dump;
 
 import org.bedework.calfacade.configs.DumpRestoreConfig;
 import org.bedework.dumprestore.Counters;
+import org.bedework.dumprestore.DumpCompression;
 import org.bedework.dumprestore.ExternalSubInfo;
 
 import edu.rpi.sss.util.xml.XmlEmit;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 /**
  * @author douglm
@@ -71,19 +82,64 @@ public class DumpGlobals extends Counters {
   /** Access to our data */
   public DumpIntf di;
 
+  /** True if each section is dumped by its own worker */
+  public boolean parallelSections;
+
+  /** Number of workers dumping the events section */
+  public int dumpThreads = 1;
+
+  /** Default for maxWorkers */
+  public static final int defaultMaxWorkers = 4;
+
+  /** Most workers - and so sessions - dumping at once. Section workers and
+   * event range workers all count against this. Never less than 2.
+   */
+  public int maxWorkers = defaultMaxWorkers;
+
+  /** Shared by all the workers to stay within maxWorkers */
+  public Semaphore workerPermits;
+
+  /** Size of the output buffers */
+  public int outputBufferSize = DumpOutput.defaultBufferSize;
+
+  /** True to write the output on a background thread */
+  public boolean backgroundWriter;
+
   /** */
   private Writer out;
 
+  private DumpOutput dumpOut;
+
+  private long outStart;
+
+  private long outEnd;
+
   /** Collections marked as external subscriptions. We may need to resubscribe
    */
   public List<ExternalSubInfo> externalSubs = new ArrayList<ExternalSubInfo>();
 
+  /** Number of queries issued for each section - in dump order
+   */
+  public Map<String, Long> sectionQueries = new LinkedHashMap<String, Long>();
+
   /* Some counters */
 
   /** */
   public DumpGlobals() {
   }
 
+  /** Globals for a worker dumping part of the data into a fragment. The
+   * worker gets its own counts which are added to ours by merge.
+   *
+   * @param parent
+   */
+  public DumpGlobals(final DumpGlobals parent) {
+    config = parent.config;
+    dumpThreads = parent.dumpThreads;
+    maxWorkers = parent.maxWorkers;
+    workerPermits = parent.workerPermits;
+  }
+
   /**
    * @param val
    * @throws Throwable
@@ -95,12 +151,138 @@ public class DumpGlobals extends Counters {
     xml.startEmit(out);
   }
 
+  /** Set up the output pipeline: characters are buffered and encoded, then
+   * optionally compressed and finally collected into large blocks which may
+   * be written by a background thread.
+   *
+   * @param val - where the output finally goes
+   * @param compression - name or null
+   * @throws Throwable
+   */
+  public void setOut(final OutputStream val,
+                     final String compression) throws Throwable {
+    dumpOut = new DumpOutput(val, outputBufferSize, backgroundWriter);
+    outStart = System.currentTimeMillis();
+
+    OutputStream os = DumpCompression.compress(dumpOut, compression);
+
+    setOut(new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 65536));
+  }
+
+  /** Output a fragment of xml - no header will be emitted.
+   *
+   * @param val
+   * @throws Throwable
+   */
+  public void setFragmentOut(final Writer val) throws Throwable {
+    out = val;
+
+    xml = new XmlEmit(true);
+    xml.startEmit(out);
+  }
+
+  /** Copy a fragment produced by a worker to our output.
+   *
+   * @param f - file written by a worker
+   * @throws Throwable
+   */
+  public void appendFragment(final File f) throws Throwable {
+    xml.flush();
+
+    Reader rdr = new InputStreamReader(new FileInputStream(f), "UTF-8");
+
+    try {
+      char[] buff = new char[65536];
+
+      for (;;) {
+        int len = rdr.read(buff);
+
+        if (len < 0) {
+          break;
+        }
+
+        out.write(buff, 0, len);
+      }
+    } finally {
+      rdr.close();
+    }
+  }
+
+  /** Add the results of a worker to ours.
+   *
+   * @param val
+   */
+  public void merge(final DumpGlobals val) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += val.counts[i];
+    }
+
+    externalSubs.addAll(val.externalSubs);
+
+    for (String section: val.sectionQueries.keySet()) {
+      addSectionQueries(section, val.sectionQueries.get(section));
+    }
+  }
+
   /**
    * @throws Throwable
    */
   public void close() throws Throwable {
     xml.flush();
     out.close();
+    outEnd = System.currentTimeMillis();
+  }
+
+  /** Release the output after a failure. Does nothing after a successful
+   * close.
+   */
+  public void abort() {
+    if (dumpOut != null) {
+      dumpOut.abort();
+    }
+  }
+
+  /**
+   * @param section
+   * @param queries
+   */
+  public void addSectionQueries(final String section, final long queries) {
+    Long ct = sectionQueries.get(section);
+
+    if (ct == null) {
+      sectionQueries.put(section, queries);
+    } else {
+      sectionQueries.put(section, ct + queries);
+    }
+  }
+
+  @Override
+  public void stats(final List<String> infoLines) {
+    super.stats(infoLines);
+
+    if (!sectionQueries.isEmpty()) {
+      info(infoLines, " ");
+      info(infoLines, "    Queries per section:");
+
+      for (String section: sectionQueries.keySet()) {
+        info(infoLines, "        " + section + ": " +
+                        sectionQueries.get(section));
+      }
+    }
+
+    if (dumpOut != null) {
+      long end = outEnd;
+      if (end == 0) {
+        end = System.currentTimeMillis();
+      }
+
+      long millis = Math.max(end - outStart, 1);
+      long bytes = dumpOut.getBytesWritten();
+
+      info(infoLines, " ");
+      info(infoLines, "    Bytes written: " + bytes);
+      info(infoLines, "     Bytes/second: " + (bytes * 1000 / millis));
+    }
   }
 
   /**
@@ -79,6 +79,14 @@ import java.util.Iterator;
  * @version 1.0
  */
 public interface DumpIntf {
+  /** Return a new, unopened object with the same settings as this one. Used
+   * to dump on more than one thread - each has its own object and session.
+   *
+   * @return DumpIntf
+   * @throws Throwable
+   */
+  public DumpIntf newInstance() throws Throwable;
+
   /** Call after any init phase
    *
    * @throws Throwable
@@ -91,6 +99,21 @@ public interface DumpIntf {
    */
   public void close() throws Throwable;
 
+  /** Set the number of entities held in memory at once when streaming the
+   * large sections. Each window is released once it has been dumped so
+   * memory use stays flat however large the database. Zero or less means
+   * load the whole section in one go.
+   *
+   * @param val
+   */
+  public void setWindowSize(int val);
+
+  /** Number of queries issued so far. Used to report per section counts.
+   *
+   * @return long count
+   */
+  public long getQueryCount();
+
   /** Will return an Iterator returning AdminGroup objects.
    *
    * @return Iterator over entities
@@ -113,7 +136,10 @@ public interface DumpIntf {
    */
   public Iterator<BwCalendar> getCalendars() throws Throwable;
 
-  /**
+  /** Children of a collection returned by getCalendars or by an earlier call
+   * to this method. Implementations may build the whole tree when
+   * getCalendars is called and answer from that.
+   *
    * @param val
    * @return Children of val
    * @throws Throwable
@@ -138,11 +164,33 @@ public interface DumpIntf {
    * All relevent objects, categories, locations, sponsors, creators will
    * be attached.
    *
+   * <p>If the window size is positive the events are read in id order
+   * a window at a time. Each window is discarded when the next is fetched
+   * so entities must not be retained once the iterator has moved on.
+   *
    * @return Iterator - events may have overrides attached.
    * @throws Throwable
    */
   public Iterator<BwEvent> getEvents() throws Throwable;
 
+  /** Lowest and highest event ids. Used to split the events between
+   * workers.
+   *
+   * @return int[] {lowest, highest} or null for no events
+   * @throws Throwable
+   */
+  public int[] getEventIdRange() throws Throwable;
+
+  /** As getEvents but only for events with ids in the given range, inclusive.
+   * The events are returned in id order.
+   *
+   * @param from - lowest id
+   * @param to - highest id
+   * @return Iterator - events may have overrides attached.
+   * @throws Throwable
+   */
+  public Iterator<BwEvent> getEvents(int from, int to) throws Throwable;
+
   /** Will return an Iterator returning BwEvent objects.
    * All relevent objects, categories, locations, sponsors, creators will
    * be attached.
@@ -0,0 +1,293 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.dump;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** The bottom of the dump output pipeline. Output is collected in large
+ * blocks before being written. Optionally the blocks are written by a
+ * background thread using two buffers, so that one can be filled while the
+ * other is written. On close a file is synced to the disk.
+ *
+ * <p>A failure on the background thread is thrown by the next write. If the
+ * dump fails call abort, in a finally block, to stop the thread.
+ *
+ * @version 1.0
+ */
+public class DumpOutput extends OutputStream {
+  /** Default size of each buffer */
+  public static final int defaultBufferSize = 1024 * 1024;
+
+  private OutputStream out;
+
+  private byte[] buff;
+
+  private int count;
+
+  private long bytesWritten;
+
+  private boolean closed;
+
+  /* Close completed - nothing for abort to do */
+  private boolean finished;
+
+  /* Background writing */
+
+  private Thread writer;
+
+  private BlockingQueue<byte[]> free;
+
+  private BlockingQueue<Block> full;
+
+  private volatile IOException writeError;
+
+  private static class Block {
+    byte[] buff;
+    int len;
+
+    Block(final byte[] buff, final int len) {
+      this.buff = buff;
+      this.len = len;
+    }
+  }
+
+  /* Tells the writer to stop */
+  private static final Block endBlock = new Block(null, 0);
+
+  /**
+   * @param out - where the output finally goes
+   * @param bufferSize - size of each buffer
+   * @param background - true to write on a background thread
+   */
+  public DumpOutput(final OutputStream out,
+                    final int bufferSize,
+                    final boolean background) {
+    this.out = out;
+
+    int size = bufferSize;
+    if (size <= 0) {
+      size = defaultBufferSize;
+    }
+
+    buff = new byte[size];
+
+    if (!background) {
+      return;
+    }
+
+    /* Room for both buffers - the writer can hand one back before we take
+     * the other */
+    free = new ArrayBlockingQueue<byte[]>(2);
+    full = new ArrayBlockingQueue<Block>(1);
+    free.add(new byte[size]);
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeBlocks();
+      }
+    }, "bwdump-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * @return number of bytes passed to the underlying stream so far
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    checkError();
+
+    if (count == buff.length) {
+      writeBuffer();
+    }
+
+    buff[count] = (byte)b;
+    count++;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    checkError();
+
+    int pos = off;
+    int remaining = len;
+
+    while (remaining > 0) {
+      if (count == buff.length) {
+        writeBuffer();
+      }
+
+      int ct = Math.min(remaining, buff.length - count);
+
+      System.arraycopy(b, pos, buff, count, ct);
+      count += ct;
+      pos += ct;
+      remaining -= ct;
+    }
+  }
+
+  /** We only hand over full buffers - the rest is written at close. Flushing
+   * small amounts of output is what we are trying to avoid.
+   */
+  @Override
+  public void flush() throws IOException {
+    checkError();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    try {
+      if (count > 0) {
+        writeBuffer();
+      }
+
+      if (writer != null) {
+        put(endBlock);
+
+        try {
+          writer.join();
+        } catch (InterruptedException ie) {
+          throw new InterruptedIOException();
+        }
+
+        checkError();
+      }
+
+      out.flush();
+
+      if (out instanceof FileOutputStream) {
+        ((FileOutputStream)out).getFD().sync();
+      }
+
+      finished = true;
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Stop the background writer and close the stream, dropping anything not
+   * yet written. For the finally block of a dump - does nothing after a
+   * successful close and may be called more than once.
+   */
+  public void abort() {
+    if (finished) {
+      return;
+    }
+
+    finished = true;
+    closed = true;
+
+    if ((writer != null) && writer.isAlive()) {
+      /* We are the only producer - once cleared the end marker fits */
+      full.clear();
+      full.offer(endBlock);
+
+      try {
+        writer.join();
+      } catch (InterruptedException ie) {
+        writer.interrupt();
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    try {
+      out.close();
+    } catch (IOException ioe) {
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    checkError();
+
+    bytesWritten += count;
+
+    if (writer == null) {
+      out.write(buff, 0, count);
+      count = 0;
+      return;
+    }
+
+    put(new Block(buff, count));
+
+    try {
+      buff = free.take();
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException();
+    }
+
+    count = 0;
+  }
+
+  private void put(final Block b) throws IOException {
+    try {
+      full.put(b);
+    } catch (InterruptedException ie) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void checkError() throws IOException {
+    if (writeError != null) {
+      throw writeError;
+    }
+  }
+
+  /* Runs on the background thread */
+  private void writeBlocks() {
+    for (;;) {
+      Block b;
+
+      try {
+        b = full.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+
+      if (b == endBlock) {
+        return;
+      }
+
+      if (writeError == null) {
+        try {
+          out.write(b.buff, 0, b.len);
+        } catch (IOException ioe) {
+          writeError = ioe;
+        }
+      }
+
+      /* Always return the buffer so the producer never blocks forever */
+      free.add(b.buff);
+    }
+  }
+}
@@ -82,8 +82,13 @@
  */
 package org.bedework.dumprestore.dump;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
 import org.bedework.calfacade.BwCalendar;
@@ -118,6 +123,9 @@ import com.idega.hibernate.SessionFactoryUtil;
  * @author martynasstake
  */
 public class HibDump implements DumpIntf{
+	  /** Number of events we hold in the session by default */
+	  public static final int defaultWindowSize = 500;
+
 	private HibSession sess;
 	  private SessionFactory sessFactory;
 
@@ -125,6 +133,18 @@ public class HibDump implements DumpIntf{
 
 	  private BwSystem syspars;
 
+	  private int windowSize = defaultWindowSize;
+
+	  private long queryCount;
+
+	  /* Children of each collection keyed by parent path. Built by getCalendars
+	   * and dropped when the section is closed.
+	   */
+	  private Map<String, List<BwCalendar>> collectionTree;
+
+	  /* Max number of masters in one override query */
+	  private static final int overrideBatchSize = 500;
+
 	  /**
 	   */
 	  public HibDump() {
@@ -143,20 +163,37 @@ public class HibDump implements DumpIntf{
 	    }
 	  }
 
+	  public DumpIntf newInstance() throws Throwable {
+	    HibDump hd = new HibDump(sessFactory);
+
+	    hd.setWindowSize(windowSize);
+
+	    return hd;
+	  }
+
 	  public void open() throws Throwable {
 	    openSess();
 	    beginTransaction();
 	  }
 
 	  public void close() throws Throwable {
+	    collectionTree = null;
 	    endTransaction();
 	    closeSess();
 	  }
 
+	  public void setWindowSize(final int val) {
+	    windowSize = val;
+	  }
+
+	  public long getQueryCount() {
+	    return queryCount;
+	  }
+
 	  public Iterator getAdminGroups() throws Throwable {
 	    sess.createQuery("from " + BwAdminGroup.class.getName());
 
-	    Collection<BwAdminGroup> c = sess.getList();
+	    Collection<BwAdminGroup> c = getList();
 
 	    for (BwGroup grp: c) {
 	      getAdminMembers(grp);
@@ -172,20 +209,51 @@ public class HibDump implements DumpIntf{
 	  public Iterator getCalendars() throws Throwable {
 	    getIntSyspars();
 
-	    sess.createQuery("from org.bedework.calfacade.BwCalendar cal where " +
-	                     "cal.path=:path1 or cal.path=:path2");
-	    sess.setString("path1", "/" + syspars.getPublicCalendarRoot());
-	    sess.setString("path2", "/" + syspars.getUserCalendarRoot());
+	    String publicRoot = "/" + syspars.getPublicCalendarRoot();
+	    String userRoot = "/" + syspars.getUserCalendarRoot();
+
+	    /* Load the whole table in one go and build the tree here rather than
+	     * querying for the children of each collection.
+	     */
+	    sess.createQuery("from org.bedework.calfacade.BwCalendar");
+
+	    Collection<BwCalendar> cols = getList();
+
+	    List<BwCalendar> roots = new ArrayList<BwCalendar>();
+	    collectionTree = new HashMap<String, List<BwCalendar>>();
+
+	    for (BwCalendar col: cols) {
+	      if (publicRoot.equals(col.getPath()) ||
+	          userRoot.equals(col.getPath())) {
+	        roots.add(col);
+	      }
+
+	      if (col.getColPath() == null) {
+	        continue;
+	      }
+
+	      List<BwCalendar> children = collectionTree.get(col.getColPath());
+	      if (children == null) {
+	        children = new ArrayList<BwCalendar>();
+	        collectionTree.put(col.getColPath(), children);
+	      }
+
+	      children.add(col);
+	    }
 
-	    return sess.getList().iterator();
+	    return roots.iterator();
 	  }
 
 	  public Collection<BwCalendar> getChildren(final BwCalendar val) throws Throwable {
+	    if (collectionTree != null) {
+	      return collectionTree.get(val.getPath());
+	    }
+
 	    sess.createQuery("from org.bedework.calfacade.BwCalendar c where " +
 	      "c.colPath=:path");
 	    sess.setString("path", val.getPath());
 
-	    return sess.getList();
+	    return getList();
 	  }
 
 	  public Iterator getCalSuites() throws Throwable {
@@ -197,14 +265,43 @@ public class HibDump implements DumpIntf{
 	  }
 
 	  public Iterator<BwEvent> getEvents() throws Throwable {
-	    Collection<BwEvent> evs = getObjectCollection(BwEventObj.class.getName());
+	    if (windowSize > 0) {
+	      return new EventWindowIterator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	    }
 
-	    for (BwEvent ev: evs) {
-	      if (ev.testRecurring()) {
-	        ev.setOverrides(getOverrides(ev));
-	      }
+	    List<BwEvent> evs = (List<BwEvent>)getObjectCollection(BwEventObj.class.getName());
+
+	    fetchOverrides(evs);
+
+	    return evs.iterator();
+	  }
+
+	  public int[] getEventIdRange() throws Throwable {
+	    sess.createQuery("select min(ev.id), max(ev.id) from " +
+	                     BwEventObj.class.getName() + " ev");
+
+	    queryCount++;
+	    Object[] res = (Object[])sess.getUnique();
+
+	    if ((res == null) || (res[0] == null)) {
+	      return null;
 	    }
 
+	    return new int[]{((Number)res[0]).intValue(),
+	                     ((Number)res[1]).intValue()};
+	  }
+
+	  public Iterator<BwEvent> getEvents(final int from, final int to) throws Throwable {
+	    if (windowSize > 0) {
+	      return new EventWindowIterator(from, to);
+	    }
+
+	    eventsQuery(from, to);
+
+	    List<BwEvent> evs = getList();
+
+	    fetchOverrides(evs);
+
 	    return evs.iterator();
 	  }
 
@@ -217,7 +314,7 @@ public class HibDump implements DumpIntf{
 
 	    sess.createQuery(sb.toString());
 
-	    Collection<BwEventAnnotation> anns = sess.getList();
+	    Collection<BwEventAnnotation> anns = getList();
 
 	    return anns.iterator();
 	  }
@@ -275,7 +372,7 @@ public class HibDump implements DumpIntf{
 	  private Collection getObjectCollection(final String className) throws Throwable {
 	    sess.createQuery("from " + className);
 
-	    return sess.getList();
+	    return getList();
 	  }
 
 	  private Iterator getObjects(final String className) throws Throwable {
@@ -323,12 +420,12 @@ public class HibDump implements DumpIntf{
 	    sess.namedQuery("getAdminGroupUserMembers");
 	    sess.setEntity("gr", group);
 
-	    Collection ms = sess.getList();
+	    Collection ms = getList();
 
 	    sess.namedQuery("getAdminGroupGroupMembers");
 	    sess.setEntity("gr", group);
 
-	    ms.addAll(sess.getList());
+	    ms.addAll(getList());
 
 	    group.setGroupMembers(ms);
 	  }
@@ -338,27 +435,156 @@ public class HibDump implements DumpIntf{
 	    sess.namedQuery("getGroupUserMembers");
 	    sess.setEntity("gr", group);
 
-	    Collection ms = sess.getList();
+	    Collection ms = getList();
 
 	    sess.namedQuery("getGroupGroupMembers");
 	    sess.setEntity("gr", group);
 
-	    ms.addAll(sess.getList());
+	    ms.addAll(getList());
 
 	    group.setGroupMembers(ms);
 	  }
 
-	  private Collection<BwEventAnnotation> getOverrides(final BwEvent ev) throws Throwable {
-	    StringBuffer sb = new StringBuffer();
+	  /* Fetch the overrides for all the recurring masters in the list and
+	   * attach them. One query per overrideBatchSize masters rather than one
+	   * per master.
+	   */
+	  private void fetchOverrides(final List<BwEvent> evs) throws Throwable {
+	    Map<Integer, BwEvent> masters = new HashMap<Integer, BwEvent>();
+
+	    for (BwEvent ev: evs) {
+	      if (!ev.testRecurring()) {
+	        continue;
+	      }
+
+	      ev.setOverrides(new ArrayList<BwEventAnnotation>());
+	      masters.put(ev.getId(), ev);
+
+	      if (masters.size() == overrideBatchSize) {
+	        fetchOverrides(masters);
+	        masters.clear();
+	      }
+	    }
+
+	    if (!masters.isEmpty()) {
+	      fetchOverrides(masters);
+	    }
+	  }
+
+	  private void fetchOverrides(final Map<Integer, BwEvent> masters) throws Throwable {
+	    StringBuilder sb = new StringBuilder();
 
 	    sb.append("from ");
 	    sb.append(BwEventAnnotation.class.getName());
-	    sb.append(" where target=:target");
+	    sb.append(" where target in (:targets)");
 	    sb.append(" and recurrenceId<>null");
 
 	    sess.createQuery(sb.toString());
-	    sess.setEntity("target", ev);
+	    sess.setParameterList("targets", masters.values());
+
+	    Collection<BwEventAnnotation> anns = getList();
+
+	    for (BwEventAnnotation ann: anns) {
+	      BwEvent master = masters.get(ann.getTarget().getId());
+
+	      if (master != null) {
+	        master.getOverrides().add(ann);
+	      }
+	    }
+	  }
+
+	  private List getList() throws CalFacadeException {
+	    queryCount++;
 
 	    return sess.getList();
 	  }
+
+	  private void eventsQuery(final int from, final int to) throws CalFacadeException {
+	    sess.createQuery("from " + BwEventObj.class.getName() + " ev " +
+	                     "where ev.id>=:from and ev.id<=:to order by ev.id");
+	    sess.setInt("from", from);
+	    sess.setInt("to", to);
+	  }
+
+	  /* Walk the events a window at a time. Each window is a separate query for
+	   * the next windowSize ids so no cursor is held open between windows - we
+	   * are free to run the override queries and to clear the session, and we
+	   * don't depend on the driver streaming results.
+	   *
+	   * The session is cleared as each new window is fetched - by then the
+	   * caller has dumped the whole of the previous window so nothing is left
+	   * hanging around in the first level cache.
+	   */
+	  private class EventWindowIterator implements Iterator<BwEvent> {
+	    /* Next id wanted and the last */
+	    private int from;
+	    private int to;
+
+	    private List<BwEvent> window = new ArrayList<BwEvent>();
+
+	    private int pos;
+
+	    private boolean done;
+
+	    EventWindowIterator(final int from, final int to) {
+	      this.from = from;
+	      this.to = to;
+	    }
+
+	    public boolean hasNext() {
+	      if (pos < window.size()) {
+	        return true;
+	      }
+
+	      if (done) {
+	        return false;
+	      }
+
+	      try {
+	        nextWindow();
+	      } catch (Throwable t) {
+	        throw new RuntimeException(t);
+	      }
+
+	      return pos < window.size();
+	    }
+
+	    public BwEvent next() {
+	      if (!hasNext()) {
+	        throw new NoSuchElementException();
+	      }
+
+	      return window.get(pos++);
+	    }
+
+	    public void remove() {
+	      throw new UnsupportedOperationException();
+	    }
+
+	    private void nextWindow() throws Throwable {
+	      window.clear();
+	      pos = 0;
+
+	      sess.clear();
+
+	      eventsQuery(from, to);
+	      sess.setMaxResults(windowSize);
+
+	      window.addAll(getList());
+
+	      if (window.size() < windowSize) {
+	        done = true;
+	      } else {
+	        int last = window.get(window.size() - 1).getId();
+
+	        if (last >= to) {
+	          done = true;
+	        } else {
+	          from = last + 1;
+	        }
+	      }
+
+	      fetchOverrides(window);
+	    }
+	  }
 }
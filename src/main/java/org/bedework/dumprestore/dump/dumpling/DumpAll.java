@@ -28,15 +28,33 @@ import org.bedework.calfacade.BwLocation;
 import org.bedework.calfacade.BwSystem;
 import org.bedework.calfacade.BwUser;
 import org.bedework.calfacade.BwVersion;
+import org.bedework.calfacade.base.DumpEntity;
 import org.bedework.calfacade.svc.BwAdminGroup;
 import org.bedework.calfacade.svc.BwAuthUser;
 import org.bedework.calfacade.svc.BwCalSuite;
 import org.bedework.calfacade.svc.prefs.BwPreferences;
 import org.bedework.dumprestore.dump.DumpGlobals;
+import org.bedework.dumprestore.dump.DumpIntf;
 
 import edu.rpi.sss.util.DateTimeUtil;
 
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.namespace.QName;
 
@@ -46,12 +64,120 @@ import javax.xml.namespace.QName;
  * @version 1.0
  */
 public class DumpAll extends Dumpling {
+  private long sectionStartQueries;
+
+  /* The sections in the order they must appear in the dump */
+  private List<Section> sections = new ArrayList<Section>();
+
   /** Constructor
    *
    * @param globals
    */
   public DumpAll(final DumpGlobals globals) {
     super(globals, new QName(dumpTag), -1);
+
+    sections.add(new Section<BwSystem>(sectionSyspars, globals.syspars) {
+      @Override
+      Iterator<BwSystem> getIterator(final DumpIntf di) throws Throwable {
+        return di.getSyspars();
+      }
+    });
+
+    sections.add(new Section<BwUser>(sectionUsers, globals.users) {
+      @Override
+      Iterator<BwUser> getIterator(final DumpIntf di) throws Throwable {
+        return di.getUsers();
+      }
+    });
+
+    sections.add(new Section<BwCategory>(sectionCategories, globals.categories) {
+      @Override
+      Iterator<BwCategory> getIterator(final DumpIntf di) throws Throwable {
+        return di.getCategories();
+      }
+    });
+
+    sections.add(new Section<BwCalendar>(sectionCollections, globals.collections) {
+      @Override
+      Iterator<BwCalendar> getIterator(final DumpIntf di) throws Throwable {
+        return di.getCalendars();
+      }
+    });
+
+    sections.add(new Section<BwLocation>(sectionLocations, globals.locations) {
+      @Override
+      Iterator<BwLocation> getIterator(final DumpIntf di) throws Throwable {
+        return di.getLocations();
+      }
+    });
+
+    sections.add(new Section<BwContact>(sectionContacts, globals.contacts) {
+      @Override
+      Iterator<BwContact> getIterator(final DumpIntf di) throws Throwable {
+        return di.getContacts();
+      }
+    });
+
+    /* These all reference the above */
+
+    sections.add(new Section<BwAuthUser>(sectionAuthUsers, globals.authusers) {
+      @Override
+      Iterator<BwAuthUser> getIterator(final DumpIntf di) throws Throwable {
+        return di.getAuthUsers();
+      }
+    });
+
+    sections.add(new Section<BwEvent>(sectionEvents, globals.events) {
+      @Override
+      Iterator<BwEvent> getIterator(final DumpIntf di) throws Throwable {
+        return di.getEvents();
+      }
+
+      @Override
+      void dump(final DumpGlobals g) throws Throwable {
+        if (g.dumpThreads > 1) {
+          dumpPartitioned(g, this);
+        } else {
+          dumpAll(g);
+        }
+      }
+    });
+
+    sections.add(new Section<BwEventAnnotation>(sectionEventAnnotations,
+                                                globals.eventAnnotations) {
+      @Override
+      Iterator<BwEventAnnotation> getIterator(final DumpIntf di) throws Throwable {
+        return di.getEventAnnotations();
+      }
+    });
+
+    sections.add(new Section<BwFilterDef>(sectionFilters, globals.filters) {
+      @Override
+      Iterator<BwFilterDef> getIterator(final DumpIntf di) throws Throwable {
+        return di.getFilters();
+      }
+    });
+
+    sections.add(new Section<BwAdminGroup>(sectionAdminGroups, globals.filters) {
+      @Override
+      Iterator<BwAdminGroup> getIterator(final DumpIntf di) throws Throwable {
+        return di.getAdminGroups();
+      }
+    });
+
+    sections.add(new Section<BwPreferences>(sectionUserPrefs, globals.userPrefs) {
+      @Override
+      Iterator<BwPreferences> getIterator(final DumpIntf di) throws Throwable {
+        return di.getPreferences();
+      }
+    });
+
+    sections.add(new Section<BwCalSuite>(sectionCalSuites, globals.calSuites) {
+      @Override
+      Iterator<BwCalSuite> getIterator(final DumpIntf di) throws Throwable {
+        return di.getCalSuites();
+      }
+    });
   }
 
   /* (non-Javadoc)
@@ -79,95 +205,248 @@ public class DumpAll extends Dumpling {
 
     globals.xml.property(new QName(dumpDateTag), DateTimeUtil.isoDateTime());
 
-    open();
-    new Dumpling<BwSystem>(globals,
-                           new QName(sectionSyspars),
-                           globals.syspars).dumpSection(globals.di.getSyspars());
-    close();
-
-    open();
-    new Dumpling<BwUser>(globals,
-                         new QName(sectionUsers),
-                         globals.users).dumpSection(globals.di.getUsers());
-    close();
-
-    open();
-    new Dumpling<BwCategory>(globals,
-                             new QName(sectionCategories),
-                             globals.categories).dumpSection(globals.di.getCategories());
-    close();
-
-    open();
-    new Dumpling<BwCalendar>(globals,
-                             new QName(sectionCollections),
-                             globals.collections).dumpSection(globals.di.getCalendars());
-    close();
-
-    open();
-    new Dumpling<BwLocation>(globals,
-                             new QName(sectionLocations),
-                             globals.locations).dumpSection(globals.di.getLocations());
-    close();
-
-    open();
-    new Dumpling<BwContact>(globals,
-                             new QName(sectionContacts),
-                             globals.contacts).dumpSection(globals.di.getContacts());
-    close();
+    if (globals.parallelSections) {
+      dumpParallel();
+    } else {
+      for (Section sect: sections) {
+        open();
+        sect.dump(globals);
+        close(sect.tag);
+      }
+    }
 
-    /* These all reference the above */
+    tagEnd(sectionTag);
+  }
+
+  /* Each section is dumped into a temporary file by a worker with its own
+   * session. The files are copied into the output in section order as they
+   * complete, so the restore sees exactly the same ordering.
+   */
+  private void dumpParallel() throws Throwable {
+    List<FragmentTask> tasks = new ArrayList<FragmentTask>();
 
-    open();
-    new Dumpling<BwAuthUser>(globals,
-                             new QName(sectionAuthUsers),
-                             globals.authusers).dumpSection(globals.di.getAuthUsers());
-    close();
-
-    open();
-    new Dumpling<BwEvent>(globals,
-                          new QName(sectionEvents),
-                             globals.events).dumpSection(globals.di.getEvents());
-    close();
-
-    open();
-    new Dumpling<BwEventAnnotation>(globals,
-                                    new QName(sectionEventAnnotations),
-                                    globals.eventAnnotations).dumpSection(globals.di.getEventAnnotations());
-    close();
-
-    open();
-    new Dumpling<BwFilterDef>(globals,
-                              new QName(sectionFilters),
-                              globals.filters).dumpSection(globals.di.getFilters());
-    close();
-
-    open();
-    new Dumpling<BwAdminGroup>(globals,
-                               new QName(sectionAdminGroups),
-                               globals.filters).dumpSection(globals.di.getAdminGroups());
-    close();
-
-    open();
-    new Dumpling<BwPreferences>(globals,
-                                new QName(sectionUserPrefs),
-                                globals.userPrefs).dumpSection(globals.di.getPreferences());
-    close();
-
-    open();
-    new Dumpling<BwCalSuite>(globals,
-                             new QName(sectionCalSuites),
-                             globals.calSuites).dumpSection(globals.di.getCalSuites());
-    close();
+    for (final Section sect: sections) {
+      tasks.add(new FragmentTask(globals, sect.tag) {
+        @Override
+        void dump(final DumpGlobals g) throws Throwable {
+          sect.dump(g);
+        }
+      });
+    }
 
-    tagEnd(sectionTag);
+    runFragments(globals, tasks, tasks.size());
+  }
+
+  /* Split the events into id ranges each dumped by a worker. The ranges are
+   * read in id order and copied into the section in range order so the
+   * output is the same whatever the number of workers.
+   */
+  private static void dumpPartitioned(final DumpGlobals g,
+                                      final Section<BwEvent> sect) throws Throwable {
+    int[] range = g.di.getEventIdRange();
+
+    if (range == null) {
+      sect.dumpAll(g);
+      return;
+    }
+
+    QName tag = new QName(sect.tag);
+    long span = ((long)range[1] - range[0]) / g.dumpThreads + 1;
+    List<FragmentTask> tasks = new ArrayList<FragmentTask>();
+
+    for (long from = range[0]; from <= range[1]; from += span) {
+      final int lo = (int)from;
+      final int hi = (int)Math.min(from + span - 1, range[1]);
+
+      tasks.add(new FragmentTask(g, sect.tag) {
+        @Override
+        void dump(final DumpGlobals wg) throws Throwable {
+          new Dumpling<BwEvent>(wg,
+                                new QName(sect.tag),
+                                sect.countIndex).dumpPartition(wg.di.getEvents(lo, hi));
+        }
+      });
+    }
+
+    g.xml.openTag(tag);
+    runFragments(g, tasks, g.dumpThreads);
+    g.xml.closeTag(tag);
+  }
+
+  /* Run the tasks and copy their output to g in the order of the list.
+   *
+   * Every task holds a permit while its session is open so all the pools -
+   * including the event ranges started from inside the events section
+   * worker - stay within maxWorkers sessions between them. The events
+   * section worker holds its permit while it waits for its ranges, so we
+   * need at least 2 or it could wait for ever.
+   */
+  private static void runFragments(final DumpGlobals g,
+                                   final List<FragmentTask> tasks,
+                                   final int threads) throws Throwable {
+    int max = Math.max(2, g.maxWorkers);
+
+    if (g.workerPermits == null) {
+      g.workerPermits = new Semaphore(max, true);
+    }
+
+    ExecutorService exec = Executors.newFixedThreadPool(Math.min(threads, max));
+    List<Future<SectionResult>> results = new ArrayList<Future<SectionResult>>();
+
+    try {
+      for (FragmentTask task: tasks) {
+        results.add(exec.submit(task));
+      }
+
+      for (Future<SectionResult> fut: results) {
+        SectionResult res;
+        try {
+          res = fut.get();
+        } catch (ExecutionException ee) {
+          throw ee.getCause();
+        }
+
+        try {
+          g.appendFragment(res.fragment);
+          g.merge(res.globals);
+        } finally {
+          res.fragment.delete();
+        }
+      }
+    } finally {
+      exec.shutdownNow();
+
+      /* Let interrupted tasks finish so none of them is still writing a
+       * fragment when we delete them.
+       */
+      try {
+        while (!exec.awaitTermination(10, TimeUnit.SECONDS)) {
+          Logger.getLogger(DumpAll.class).info("Waiting for dump tasks to stop");
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+
+      /* Clean up after any failure */
+      for (Future<SectionResult> fut: results) {
+        if (fut.isDone() && !fut.isCancelled()) {
+          try {
+            fut.get().fragment.delete();
+          } catch (Throwable t) {
+            // Failed task - no file
+          }
+        }
+      }
+    }
   }
 
   private void open() throws Throwable {
+    sectionStartQueries = globals.di.getQueryCount();
     globals.di.open();
   }
 
-  private void close() throws Throwable {
+  private void close(final String section) throws Throwable {
     globals.di.close();
+    globals.addSectionQueries(section,
+                              globals.di.getQueryCount() - sectionStartQueries);
   }
-}
 
+  private static class SectionResult {
+    File fragment;
+
+    DumpGlobals globals;
+  }
+
+  /* Dump something into a temporary file using its own globals and session.
+   */
+  private static abstract class FragmentTask implements Callable<SectionResult> {
+    private DumpGlobals parent;
+
+    private String name;
+
+    FragmentTask(final DumpGlobals parent, final String name) {
+      this.parent = parent;
+      this.name = name;
+    }
+
+    abstract void dump(DumpGlobals g) throws Throwable;
+
+    public SectionResult call() throws Exception {
+      try {
+        return dumpToFragment();
+      } catch (Exception e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new Exception(t);
+      }
+    }
+
+    private SectionResult dumpToFragment() throws Throwable {
+      SectionResult res = new SectionResult();
+
+      res.fragment = File.createTempFile("bwdump-" + name, ".xml");
+      res.fragment.deleteOnExit();
+
+      try {
+        res.globals = new DumpGlobals(parent);
+
+        Writer wtr = new OutputStreamWriter(
+                      new BufferedOutputStream(new FileOutputStream(res.fragment),
+                                               65536),
+                      "UTF-8");
+
+        try {
+          res.globals.setFragmentOut(wtr);
+
+          parent.workerPermits.acquire();
+          try {
+            DumpIntf di = parent.di.newInstance();
+            res.globals.di = di;
+
+            di.open();
+            try {
+              dump(res.globals);
+            } finally {
+              di.close();
+            }
+
+            res.globals.addSectionQueries(name, di.getQueryCount());
+          } finally {
+            parent.workerPermits.release();
+          }
+        } finally {
+          res.globals.close();
+        }
+
+        return res;
+      } catch (Throwable t) {
+        // Nobody gets the result - don't leave the file behind
+        res.fragment.delete();
+        throw t;
+      }
+    }
+  }
+
+  private static abstract class Section<T extends DumpEntity> {
+    String tag;
+
+    int countIndex;
+
+    Section(final String tag, final int countIndex) {
+      this.tag = tag;
+      this.countIndex = countIndex;
+    }
+
+    abstract Iterator<T> getIterator(DumpIntf di) throws Throwable;
+
+    void dump(final DumpGlobals globals) throws Throwable {
+      dumpAll(globals);
+    }
+
+    void dumpAll(final DumpGlobals globals) throws Throwable {
+      new Dumpling<T>(globals,
+                      new QName(tag),
+                      countIndex).dumpSection(getIterator(globals.di));
+    }
+  }
+}
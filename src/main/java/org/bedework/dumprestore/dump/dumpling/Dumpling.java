@@ -81,6 +81,16 @@ public class Dumpling<T extends DumpEntity> implements Defs {
     tagEnd(sectionTag);
   }
 
+  /** Dump entities without the enclosing section tag. Used when a section
+   * is split between workers.
+   *
+   * @param it
+   * @throws Throwable
+   */
+  public void dumpPartition(final Iterator<T> it) throws Throwable {
+    dumpCollection(it);
+  }
+
   private void dumpCollection(final Iterator<T> it) throws Throwable {
     while (it.hasNext()) {
       DumpEntity d = unwrap(it.next());
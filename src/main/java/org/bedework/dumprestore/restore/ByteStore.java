@@ -0,0 +1,557 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Hash table of byte array keys to byte array values held outside the
+ * java heap.
+ *
+ * <p>Records are appended to large buffers and never move. The index is an
+ * open addressing table of record positions in a buffer of its own. A
+ * replaced value is appended as a new record and the old one is abandoned -
+ * the tables we hold here are written once and read many times.
+ *
+ * <p>Subclasses say where the buffers come from: OffHeap allocates direct
+ * buffers, Mapped maps regions of a scratch file.
+ *
+ * <p>Buffers are freed as soon as we are done with them - the old index on
+ * a rehash and everything on close - rather than left for the collector.
+ * Nothing may touch the store once it is closed.
+ *
+ * <p>Not synchronized.
+ */
+public abstract class ByteStore {
+  /* Records are packed into chunks of this size. A record may not be
+   * bigger.
+   */
+  static final int chunkSize = 1 << 26;
+
+  private static final int chunkShift = 26;
+
+  private static final int initialSlots = 1 << 16;
+
+  /* hash, key length, value length */
+  private static final int recordHeader = 12;
+
+  private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+  /* The chunk we append to */
+  private ByteBuffer current;
+
+  /* Slots hold record position + 1. 0 is an empty slot */
+  private ByteBuffer index;
+
+  private int slots;
+
+  private int size;
+
+  private long allocated;
+
+  /** Buffers are direct ByteBuffers. They count against the JVM's direct
+   * memory limit.
+   */
+  public static class OffHeap extends ByteStore {
+    private AtomicLong inUse;
+
+    /**
+     */
+    public OffHeap() {
+      this(null);
+    }
+
+    /**
+     * @param inUse - shared count of direct bytes we hold. May be null.
+     */
+    public OffHeap(final AtomicLong inUse) {
+      this.inUse = inUse;
+    }
+
+    @Override
+    protected ByteBuffer allocate(final int len) {
+      ByteBuffer b = ByteBuffer.allocateDirect(len);
+
+      if (inUse != null) {
+        inUse.addAndGet(len);
+      }
+
+      return b;
+    }
+
+    @Override
+    protected void free(final ByteBuffer b) {
+      super.free(b);
+
+      if (inUse != null) {
+        inUse.addAndGet(-b.capacity());
+      }
+    }
+
+    @Override
+    public String getKind() {
+      return "off-heap";
+    }
+  }
+
+  /** Buffers are mapped from a scratch file which is deleted on close.
+   * Each index gets a file of its own which is deleted when a rehash
+   * replaces it, so the files only grow with the data.
+   */
+  public static class Mapped extends ByteStore {
+    private File dir;
+
+    private String name;
+
+    private File file;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private long fileLength;
+
+    private Map<ByteBuffer, File> indexFiles =
+        new IdentityHashMap<ByteBuffer, File>();
+
+    /**
+     * @param dir - where we put the file. Null for the default temp dir.
+     * @param name - used as a prefix for the file name
+     * @throws Throwable
+     */
+    public Mapped(final File dir, final String name) throws Throwable {
+      this.dir = dir;
+      this.name = name;
+
+      file = File.createTempFile("bwrestore-" + name + "-", ".tbl", dir);
+      file.deleteOnExit();
+
+      raf = new RandomAccessFile(file, "rw");
+      channel = raf.getChannel();
+    }
+
+    @Override
+    protected ByteBuffer allocate(final int len) throws Throwable {
+      ByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE,
+                                 fileLength, len);
+      fileLength += len;
+
+      return b;
+    }
+
+    @Override
+    protected ByteBuffer allocateIndex(final int len) throws Throwable {
+      File f = File.createTempFile("bwrestore-" + name + "-", ".idx", dir);
+      f.deleteOnExit();
+
+      RandomAccessFile iraf = new RandomAccessFile(f, "rw");
+
+      try {
+        /* The mapping stays valid once the file is closed */
+        ByteBuffer b = iraf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                             0, len);
+        indexFiles.put(b, f);
+
+        return b;
+      } finally {
+        iraf.close();
+      }
+    }
+
+    @Override
+    protected void freeIndex(final ByteBuffer b) {
+      free(b);
+
+      File f = indexFiles.remove(b);
+
+      if (f != null) {
+        f.delete();
+      }
+    }
+
+    @Override
+    public String getKind() {
+      return "mapped " + file;
+    }
+
+    @Override
+    public void close() throws Throwable {
+      super.close();
+
+      channel.close();
+      raf.close();
+
+      /* If a buffer could not be unmapped this fails on some platforms.
+       * deleteOnExit will get it then.
+       */
+      file.delete();
+    }
+  }
+
+  /**
+   * @param len
+   * @return a new buffer of the given length
+   * @throws Throwable
+   */
+  protected abstract ByteBuffer allocate(int len) throws Throwable;
+
+  /**
+   * @return description of where we keep the data
+   */
+  public abstract String getKind();
+
+  /** Give back a buffer from allocate.
+   *
+   * @param b
+   */
+  protected void free(final ByteBuffer b) {
+    release(b);
+  }
+
+  /**
+   * @param len
+   * @return a new buffer for the index
+   * @throws Throwable
+   */
+  protected ByteBuffer allocateIndex(final int len) throws Throwable {
+    return allocate(len);
+  }
+
+  /** Give back a buffer from allocateIndex.
+   *
+   * @param b
+   */
+  protected void freeIndex(final ByteBuffer b) {
+    free(b);
+  }
+
+  /**
+   * @param key
+   * @return value or null
+   * @throws Throwable
+   */
+  public byte[] get(final byte[] key) throws Throwable {
+    if (index == null) {
+      return null;
+    }
+
+    long pos = index.getLong(find(key, hash(key)) * 8);
+
+    if (pos == 0) {
+      return null;
+    }
+
+    return recordValue(pos - 1);
+  }
+
+  /**
+   * @param key
+   * @param val
+   * @return previous value or null
+   * @throws Throwable
+   */
+  public byte[] put(final byte[] key, final byte[] val) throws Throwable {
+    if (index == null) {
+      newIndex(initialSlots);
+    }
+
+    int h = hash(key);
+    int slot = find(key, h);
+    long prevPos = index.getLong(slot * 8);
+
+    index.putLong(slot * 8, append(h, key, val) + 1);
+
+    if (prevPos != 0) {
+      return recordValue(prevPos - 1);
+    }
+
+    size++;
+
+    if (size > (slots / 2)) {
+      rehash(slots * 2);
+    }
+
+    return null;
+  }
+
+  /**
+   * @param key
+   * @return true if we have an entry for the key
+   * @throws Throwable
+   */
+  public boolean containsKey(final byte[] key) throws Throwable {
+    if (index == null) {
+      return false;
+    }
+
+    return index.getLong(find(key, hash(key)) * 8) != 0;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return number of index slots - for iterating with key and value
+   */
+  public int getSlots() {
+    return slots;
+  }
+
+  /**
+   * @param slot
+   * @return key in slot or null for an empty slot
+   */
+  public byte[] key(final int slot) {
+    long pos = index.getLong(slot * 8);
+
+    if (pos == 0) {
+      return null;
+    }
+
+    ByteBuffer b = record(pos - 1);
+    b.getInt(); // hash
+    byte[] key = new byte[b.getInt()];
+    b.getInt();
+    b.get(key);
+
+    return key;
+  }
+
+  /**
+   * @param slot
+   * @return value in slot or null for an empty slot
+   */
+  public byte[] value(final int slot) {
+    long pos = index.getLong(slot * 8);
+
+    if (pos == 0) {
+      return null;
+    }
+
+    return recordValue(pos - 1);
+  }
+
+  /**
+   * @return bytes allocated for data and index
+   */
+  public long memorySize() {
+    return allocated;
+  }
+
+  /** Free the buffers. The store may not be used afterwards but size and
+   * memorySize still report what it held.
+   *
+   * @throws Throwable
+   */
+  public void close() throws Throwable {
+    for (ByteBuffer b: chunks) {
+      free(b);
+    }
+
+    if (index != null) {
+      freeIndex(index);
+    }
+
+    chunks.clear();
+    current = null;
+    index = null;
+    slots = 0;
+  }
+
+  /* Free a direct or mapped buffer now rather than whenever the collector
+   * gets to it. There is no public api for this - if neither of these
+   * works the collector frees it as before.
+   */
+  static void release(final ByteBuffer b) {
+    if ((b == null) || !b.isDirect()) {
+      return;
+    }
+
+    try {
+      // Java 9 on
+      Class<?> uc = Class.forName("sun.misc.Unsafe");
+      Method clean = uc.getMethod("invokeCleaner", ByteBuffer.class);
+      Field f = uc.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+
+      clean.invoke(f.get(null), b);
+      return;
+    } catch (Throwable t) {
+    }
+
+    try {
+      Method cm = b.getClass().getMethod("cleaner");
+      cm.setAccessible(true);
+
+      Object cleaner = cm.invoke(b);
+
+      if (cleaner != null) {
+        Method clean = cleaner.getClass().getMethod("clean");
+        clean.setAccessible(true);
+        clean.invoke(cleaner);
+      }
+    } catch (Throwable t) {
+    }
+  }
+
+  /* ====================================================================
+   *                       Private methods
+   * ==================================================================== */
+
+  private static int hash(final byte[] key) {
+    int h = Arrays.hashCode(key);
+
+    h *= 0x9E3779B9;
+
+    return h ^ (h >>> 16);
+  }
+
+  /* Slot holding the key or the empty slot where it would go */
+  private int find(final byte[] key, final int h) {
+    int mask = slots - 1;
+    int slot = h & mask;
+
+    for (;;) {
+      long pos = index.getLong(slot * 8);
+
+      if ((pos == 0) || matches(pos - 1, h, key)) {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private boolean matches(final long pos, final int h, final byte[] key) {
+    ByteBuffer b = record(pos);
+
+    if (b.getInt() != h) {
+      return false;
+    }
+
+    if (b.getInt() != key.length) {
+      return false;
+    }
+
+    b.getInt();
+
+    for (int i = 0; i < key.length; i++) {
+      if (b.get() != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /* A view of the chunk positioned at the record */
+  private ByteBuffer record(final long pos) {
+    ByteBuffer b = chunks.get((int)(pos >>> chunkShift)).duplicate();
+
+    b.position((int)(pos & (chunkSize - 1)));
+
+    return b;
+  }
+
+  private byte[] recordValue(final long pos) {
+    ByteBuffer b = record(pos);
+    b.getInt(); // hash
+    int keyLen = b.getInt();
+    byte[] val = new byte[b.getInt()];
+    b.position(b.position() + keyLen);
+    b.get(val);
+
+    return val;
+  }
+
+  private long append(final int h, final byte[] key,
+                      final byte[] val) throws Throwable {
+    int len = recordHeader + key.length + val.length;
+
+    if (len > chunkSize) {
+      throw new Exception("Entry of " + len + " bytes is too big to store");
+    }
+
+    if ((current == null) || (current.remaining() < len)) {
+      current = allocate(chunkSize);
+      allocated += chunkSize;
+      chunks.add(current);
+    }
+
+    long pos = ((long)(chunks.size() - 1) << chunkShift) + current.position();
+
+    current.putInt(h);
+    current.putInt(key.length);
+    current.putInt(val.length);
+    current.put(key);
+    current.put(val);
+
+    return pos;
+  }
+
+  private void newIndex(final int num) throws Throwable {
+    index = allocateIndex(num * 8);
+    allocated += num * 8L;
+    slots = num;
+
+    /* Mapped regions of a new file and direct buffers start zeroed */
+  }
+
+  private void rehash(final int num) throws Throwable {
+    ByteBuffer old = index;
+    int oldSlots = slots;
+
+    newIndex(num);
+
+    int mask = slots - 1;
+
+    for (int i = 0; i < oldSlots; i++) {
+      long pos = old.getLong(i * 8);
+
+      if (pos == 0) {
+        continue;
+      }
+
+      int slot = record(pos - 1).getInt() & mask;
+
+      while (index.getLong(slot * 8) != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      index.putLong(slot * 8, pos);
+    }
+
+    freeIndex(old);
+    allocated -= oldSlots * 8L;
+  }
+}
@@ -0,0 +1,181 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Map;
+
+/** How far a restore got. Everything up to and including entity number
+ * ordinal of section number sectionIndex has been committed.
+ *
+ * <p>The lookup tables the rules build as they parse are rebuilt by
+ * parsing again, so only the tables filled in from database state - the
+ * remapped location and contact uids - are saved. They are streamed from
+ * and to the restore's own tables, which may be off the heap, so no copy
+ * is made.
+ *
+ * @version 1.0
+ */
+public class Checkpoint {
+  private static final int version = 1;
+
+  /** Date from the dump we were restoring */
+  public String dumpDate;
+
+  /** Sections are numbered from 1 in the order they appear */
+  public int sectionIndex;
+
+  /** */
+  public String sectionName;
+
+  /** Entities written in the section */
+  public int ordinal;
+
+  /** The restore's table - not a copy */
+  public Map<OwnerUidKey, String> locationsUidTbl;
+
+  /** The restore's table - not a copy */
+  public Map<OwnerUidKey, String> contactsUidTbl;
+
+  /** Write the checkpoint so that a crash at any point leaves either the
+   * previous or this checkpoint in place.
+   *
+   * @param f
+   * @throws Throwable
+   */
+  public void write(final File f) throws Throwable {
+    File tmp = new File(f.getPath() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(fos));
+
+      out.writeInt(version);
+      writeString(out, dumpDate);
+      out.writeInt(sectionIndex);
+      writeString(out, sectionName);
+      out.writeInt(ordinal);
+      writeTable(out, locationsUidTbl);
+      writeTable(out, contactsUidTbl);
+
+      out.flush();
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+
+    if (!tmp.renameTo(f)) {
+      /* Some platforms won't rename over an existing file */
+      f.delete();
+
+      if (!tmp.renameTo(f)) {
+        throw new Exception("Unable to rename " + tmp + " to " + f);
+      }
+    }
+  }
+
+  /**
+   * @param f
+   * @param locationsUidTbl - remapped location uids are added to this
+   * @param contactsUidTbl - remapped contact uids are added to this
+   * @return checkpoint read from the file
+   * @throws Throwable
+   */
+  public static Checkpoint read(final File f,
+                                final Map<OwnerUidKey, String> locationsUidTbl,
+                                final Map<OwnerUidKey, String> contactsUidTbl)
+        throws Throwable {
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(f)));
+
+    try {
+      if (in.readInt() != version) {
+        throw new Exception("Unsupported checkpoint version in " + f);
+      }
+
+      Checkpoint cp = new Checkpoint();
+
+      cp.dumpDate = readString(in);
+      cp.sectionIndex = in.readInt();
+      cp.sectionName = readString(in);
+      cp.ordinal = in.readInt();
+      cp.locationsUidTbl = locationsUidTbl;
+      cp.contactsUidTbl = contactsUidTbl;
+      readTable(in, cp.locationsUidTbl);
+      readTable(in, cp.contactsUidTbl);
+
+      return cp;
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Checkpoint{section " + sectionIndex + " (" + sectionName +
+           "), entity " + ordinal + "}";
+  }
+
+  private static void writeTable(final DataOutputStream out,
+                                 final Map<OwnerUidKey, String> tbl) throws Throwable {
+    synchronized (tbl) {
+      out.writeInt(tbl.size());
+
+      for (Map.Entry<OwnerUidKey, String> ent: tbl.entrySet()) {
+        writeString(out, ent.getKey().getOwnerHref());
+        writeString(out, ent.getKey().getUid());
+        writeString(out, ent.getValue());
+      }
+    }
+  }
+
+  private static void readTable(final DataInputStream in,
+                                final Map<OwnerUidKey, String> tbl) throws Throwable {
+    int sz = in.readInt();
+
+    for (int i = 0; i < sz; i++) {
+      OwnerUidKey key = new OwnerUidKey(readString(in), readString(in));
+      tbl.put(key, readString(in));
+    }
+  }
+
+  private static void writeString(final DataOutputStream out,
+                                  final String val) throws Throwable {
+    out.writeBoolean(val != null);
+
+    if (val != null) {
+      out.writeUTF(val);
+    }
+  }
+
+  private static String readString(final DataInputStream in) throws Throwable {
+    if (!in.readBoolean()) {
+      return null;
+    }
+
+    return in.readUTF();
+  }
+}
@@ -0,0 +1,585 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwAlarm;
+import org.bedework.calfacade.BwAttendee;
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCategory;
+import org.bedework.calfacade.BwContact;
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwFilterDef;
+import org.bedework.calfacade.BwLocation;
+import org.bedework.calfacade.BwPrincipal;
+import org.bedework.calfacade.BwSystem;
+import org.bedework.calfacade.BwUser;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.svc.BwAdminGroup;
+import org.bedework.calfacade.svc.BwAuthUser;
+import org.bedework.calfacade.svc.BwCalSuite;
+import org.bedework.calfacade.svc.EventInfo;
+import org.bedework.calfacade.svc.prefs.BwPreferences;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+
+/** Wraps a RestoreIntf to record how far the restore got and to skip that
+ * work when we resume.
+ *
+ * <p>Every write is numbered within its section. Every interval writes, and
+ * at the end of each section, we commit everything outstanding and then
+ * write a checkpoint. On resume the dump is parsed again from the start -
+ * which rebuilds all the lookup tables the rules fill in - but writes up to
+ * the checkpoint are skipped.
+ *
+ * <p>While we are checkpointing HibRestore does not commit at its batch
+ * boundaries - the checkpoints are the only commits, so nothing committed
+ * is past the last checkpoint. Only a failure between a commit and the
+ * write of its checkpoint repeats work - at most one interval.
+ *
+ * <p>If a batch written since the last checkpoint is rolled back the
+ * restore stops: no further writes, commits or checkpoints. The checkpoint
+ * stays before the lost entities so a resume restores them.
+ *
+ * <p>We don't seek to a byte offset. The digester needs the enclosing
+ * elements on its stack and the rules need the tables built from earlier
+ * sections, and a compressed dump can't be seeked anyway. Parsing without
+ * writing runs at parser speed so the time lost is small.
+ *
+ * @version 1.0
+ */
+public class CheckpointRestore implements RestoreIntf {
+  /** Default number of writes between checkpoints */
+  public static final int defaultInterval = 10000;
+
+  private RestoreIntf intf;
+
+  private RestoreGlobals globals;
+
+  private File file;
+
+  private int interval;
+
+  /* Where we are */
+  private int sectionIndex;
+  private String sectionName;
+  private int ordinal;
+
+  private int sinceCheckpoint;
+
+  /* Where we resume - null when not skipping */
+  private Checkpoint resumeFrom;
+
+  private boolean resume;
+
+  private long skipped;
+
+  /* Why we stopped - set when a batch was lost */
+  private volatile String failure;
+
+  private transient Logger log;
+
+  /**
+   * @param intf - does the work
+   * @param file - the checkpoint
+   * @param interval - number of writes between checkpoints
+   * @param resume - true to skip what the checkpoint says is done
+   */
+  public CheckpointRestore(final RestoreIntf intf,
+                           final File file,
+                           final int interval,
+                           final boolean resume) {
+    this.intf = intf;
+    this.file = file;
+    this.interval = interval;
+    this.resume = resume;
+  }
+
+  /** Called as each section starts.
+   *
+   * @param name
+   * @throws Throwable
+   */
+  public void startSection(final String name) throws Throwable {
+    checkFailed();
+
+    if ((resumeFrom != null) && (sectionIndex == 0) &&
+        (resumeFrom.dumpDate != null) &&
+        !resumeFrom.dumpDate.equals(globals.dumpDate)) {
+      throw new Exception("Checkpoint is for the dump of " +
+                          resumeFrom.dumpDate + " not " + globals.dumpDate);
+    }
+
+    sectionIndex++;
+    sectionName = name;
+    ordinal = 0;
+    sinceCheckpoint = 0;
+  }
+
+  /** Called at the end of each section after everything is committed.
+   *
+   * @throws Throwable
+   */
+  public void endSection() throws Throwable {
+    checkFailed();
+
+    if (resumeFrom != null) {
+      // Nothing new written
+      return;
+    }
+
+    save();
+  }
+
+  /** Call before each write.
+   *
+   * @return false if this write was done before the checkpoint
+   * @throws Throwable
+   */
+  public boolean startWrite() throws Throwable {
+    checkFailed();
+
+    ordinal++;
+
+    if (resumeFrom == null) {
+      return true;
+    }
+
+    if ((sectionIndex < resumeFrom.sectionIndex) ||
+        ((sectionIndex == resumeFrom.sectionIndex) &&
+         (ordinal <= resumeFrom.ordinal))) {
+      skipped++;
+      return false;
+    }
+
+    info("Skipped " + skipped + " writes. Resuming at section " +
+         sectionIndex + " (" + sectionName + "), entity " + ordinal);
+    resumeFrom = null;
+
+    return true;
+  }
+
+  /** Call after each write that was not skipped.
+   *
+   * @throws Throwable
+   */
+  public void endWrite() throws Throwable {
+    sinceCheckpoint++;
+
+    if (sinceCheckpoint < interval) {
+      return;
+    }
+
+    commit();
+  }
+
+  /** Commit everything written so far - including what the event workers
+   * have queued - and checkpoint it. Anything that needs the workers'
+   * events committed must come through here rather than commit itself.
+   *
+   * @throws Throwable
+   */
+  public void commit() throws Throwable {
+    checkFailed();
+
+    intf.endTransactionNow();
+
+    if (globals.eventWorkers != null) {
+      globals.eventWorkers.sync();
+    }
+
+    if (resumeFrom != null) {
+      // Still skipping - nothing new to record
+      return;
+    }
+
+    save();
+  }
+
+  /** Called when entities written since the last checkpoint were rolled
+   * back. Checkpointing past them would lose them for good, so from now on
+   * every write, commit and checkpoint fails.
+   *
+   * @param num - number of entities lost
+   */
+  public synchronized void lost(final int num) {
+    if (failure != null) {
+      return;
+    }
+
+    failure = num + " entities written after the checkpoint for section " +
+              sectionIndex + " (" + sectionName + "), entity " + ordinal +
+              " were rolled back. Restore stopped - fix the cause and run" +
+              " again with -resume to restore from " + file;
+    getLog().error(failure);
+  }
+
+  /**
+   * @return true if a batch was lost and we have stopped
+   */
+  public boolean failed() {
+    return failure != null;
+  }
+
+  /** Throw if a batch was lost.
+   *
+   * @throws Throwable
+   */
+  public void checkFailed() throws Throwable {
+    if (failure != null) {
+      throw new Exception(failure);
+    }
+  }
+
+  @Override
+  public void init(final RestoreGlobals globals) throws Throwable {
+    this.globals = globals;
+    intf.init(globals);
+
+    if (!resume) {
+      return;
+    }
+
+    if (!file.exists()) {
+      throw new Exception("No checkpoint " + file + " to resume from");
+    }
+
+    resumeFrom = Checkpoint.read(file,
+                                 globals.locationsUidTbl,
+                                 globals.contactsUidTbl);
+
+    info("Resuming from " + resumeFrom);
+  }
+
+  @Override
+  public RestoreIntf newInstance() throws Throwable {
+    return intf.newInstance();
+  }
+
+  @Override
+  public HibSession getSession() throws CalFacadeException {
+    return intf.getSession();
+  }
+
+  @Override
+  public void open() throws Throwable {
+    intf.open();
+  }
+
+  @Override
+  public void startTransaction() throws Throwable {
+    intf.startTransaction();
+  }
+
+  @Override
+  public void endTransactionNow() throws Throwable {
+    intf.endTransactionNow();
+  }
+
+  @Override
+  public void endTransaction() throws Throwable {
+    intf.endTransaction();
+  }
+
+  @Override
+  public void close() throws Throwable {
+    intf.close();
+  }
+
+  @Override
+  public void restoreSyspars(final BwSystem o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreSyspars(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void updateSyspars(final BwSystem o) throws Throwable {
+    if (startWrite()) {
+      intf.updateSyspars(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreUser(final BwUser o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreUser(o);
+      endWrite();
+      return;
+    }
+
+    /* Later sections may refer to the user entity itself so give it the id
+     * it was saved with.
+     */
+    BwUser u = intf.getUser(o.getAccount());
+    if (u != null) {
+      o.setId(u.getId());
+    }
+  }
+
+  @Override
+  public void restoreAttendee(final BwAttendee o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreAttendee(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreAdminGroup(final BwAdminGroup o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreAdminGroup(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void updateAdminGroup(final BwAdminGroup o) throws Throwable {
+    if (startWrite()) {
+      intf.updateAdminGroup(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void addAdminGroupMember(final BwAdminGroup o,
+                                  final BwPrincipal pr) throws Throwable {
+    if (startWrite()) {
+      intf.addAdminGroupMember(o, pr);
+      endWrite();
+    }
+  }
+
+  @Override
+  public BwAdminGroup getAdminGroup(final String name) throws Throwable {
+    return intf.getAdminGroup(name);
+  }
+
+  @Override
+  public void restoreAuthUser(final BwAuthUser o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreAuthUser(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreEvent(final EventInfo ei) throws Throwable {
+    if (startWrite()) {
+      intf.restoreEvent(ei);
+      endWrite();
+    }
+  }
+
+  @Override
+  public BwEvent getEvent(final BwUser user,
+                          final String colPath,
+                          final String recurrenceId,
+                          final String uid) throws Throwable {
+    return intf.getEvent(user, colPath, recurrenceId, uid);
+  }
+
+  @Override
+  public boolean eventNameExists(final BwCalendar cal,
+                                 final String name) throws Throwable {
+    return intf.eventNameExists(cal, name);
+  }
+
+  @Override
+  public void update(final BwEvent o) throws Throwable {
+    if (startWrite()) {
+      intf.update(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreCategory(final BwCategory o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreCategory(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreCalSuite(final BwCalSuite o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreCalSuite(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreLocation(final BwLocation o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreLocation(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreContact(final BwContact o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreContact(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreFilter(final BwFilterDef o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreFilter(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreUserPrefs(final BwPreferences o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreUserPrefs(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void restoreAlarm(final BwAlarm o) throws Throwable {
+    if (startWrite()) {
+      intf.restoreAlarm(o);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void update(final BwUser user) throws Throwable {
+    if (startWrite()) {
+      intf.update(user);
+      endWrite();
+    }
+  }
+
+  @Override
+  public BwCalendar getCalendar(final String path) throws Throwable {
+    return intf.getCalendar(path);
+  }
+
+  @Override
+  public BwCategory getCategory(final OwnerUidKey key) throws Throwable {
+    return intf.getCategory(key);
+  }
+
+  @Override
+  public BwCategory getCategory(final String uid) throws Throwable {
+    return intf.getCategory(uid);
+  }
+
+  @Override
+  public BwContact getContact(final OwnerUidKey key) throws Throwable {
+    return intf.getContact(key);
+  }
+
+  @Override
+  public BwContact getContact(final String uid) throws Throwable {
+    return intf.getContact(uid);
+  }
+
+  @Override
+  public BwLocation getLocation(final OwnerUidKey key) throws Throwable {
+    return intf.getLocation(key);
+  }
+
+  @Override
+  public BwLocation getLocation(final String uid) throws Throwable {
+    return intf.getLocation(uid);
+  }
+
+  @Override
+  public BwUser getUser(final String account) throws Throwable {
+    return intf.getUser(account);
+  }
+
+  @Override
+  public void saveRootCalendar(final BwCalendar val) throws Throwable {
+    if (startWrite()) {
+      intf.saveRootCalendar(val);
+      endWrite();
+    }
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val) throws Throwable {
+    if (startWrite()) {
+      intf.addCalendar(val);
+      endWrite();
+    }
+  }
+
+  @Override
+  public String getUserHome(final BwUser user) throws Throwable {
+    return intf.getUserHome(user);
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val,
+                          final String parentPath) throws Throwable {
+    if (startWrite()) {
+      intf.addCalendar(val, parentPath);
+      endWrite();
+    }
+  }
+
+  /* ====================================================================
+   *                       Private methods
+   * ==================================================================== */
+
+  private void save() throws Throwable {
+    checkFailed();
+
+    Checkpoint cp = new Checkpoint();
+
+    cp.dumpDate = globals.dumpDate;
+    cp.sectionIndex = sectionIndex;
+    cp.sectionName = sectionName;
+    cp.ordinal = ordinal;
+    cp.locationsUidTbl = globals.locationsUidTbl;
+    cp.contactsUidTbl = globals.contactsUidTbl;
+
+    cp.write(file);
+    sinceCheckpoint = 0;
+
+    if (globals.config.getDebug()) {
+      getLog().debug("Wrote " + cp);
+    }
+  }
+
+  private Logger getLog() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void info(final String msg) {
+    getLog().info(msg);
+  }
+}
@@ -0,0 +1,145 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/** Turns table keys and values into bytes for a ByteStore and back.
+ *
+ * @param <T>
+ */
+public abstract class Codec<T> {
+  /** Strings - may be null */
+  public static final Codec<String> string = new Codec<String>() {
+    @Override
+    protected void write(final DataOutputStream out,
+                         final String val) throws Throwable {
+      writeString(out, val);
+    }
+
+    @Override
+    protected String read(final DataInputStream in) throws Throwable {
+      return readString(in);
+    }
+  };
+
+  /** */
+  public static final Codec<OwnerUidKey> ownerUidKey = new Codec<OwnerUidKey>() {
+    @Override
+    protected void write(final DataOutputStream out,
+                         final OwnerUidKey val) throws Throwable {
+      writeString(out, val.getOwnerHref());
+      writeString(out, val.getUid());
+    }
+
+    @Override
+    protected OwnerUidKey read(final DataInputStream in) throws Throwable {
+      String ownerHref = readString(in);
+
+      return new OwnerUidKey(ownerHref, readString(in));
+    }
+  };
+
+  /** Anything serializable. Each get returns a new copy.
+   *
+   * @param <T>
+   */
+  public static class Serialized<T> extends Codec<T> {
+    @Override
+    protected void write(final DataOutputStream out,
+                         final T val) throws Throwable {
+      ObjectOutputStream oos = new ObjectOutputStream(out);
+
+      oos.writeObject(val);
+      oos.flush();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected T read(final DataInputStream in) throws Throwable {
+      return (T)new ObjectInputStream(in).readObject();
+    }
+  }
+
+  protected abstract void write(DataOutputStream out, T val) throws Throwable;
+
+  protected abstract T read(DataInputStream in) throws Throwable;
+
+  /**
+   * @param val
+   * @return bytes
+   * @throws Throwable
+   */
+  public byte[] encode(final T val) throws Throwable {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+
+    write(out, val);
+    out.flush();
+
+    return bos.toByteArray();
+  }
+
+  /**
+   * @param val - may be null
+   * @return decoded value or null
+   * @throws Throwable
+   */
+  public T decode(final byte[] val) throws Throwable {
+    if (val == null) {
+      return null;
+    }
+
+    return read(new DataInputStream(new ByteArrayInputStream(val)));
+  }
+
+  /* Strings are almost always short but may in theory be more than
+   * writeUTF can take.
+   */
+  private static void writeString(final DataOutputStream out,
+                                  final String val) throws Throwable {
+    if (val == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    byte[] b = val.getBytes("UTF-8");
+
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static String readString(final DataInputStream in) throws Throwable {
+    int len = in.readInt();
+
+    if (len < 0) {
+      return null;
+    }
+
+    byte[] b = new byte[len];
+    in.readFully(b);
+
+    return new String(b, "UTF-8");
+  }
+}
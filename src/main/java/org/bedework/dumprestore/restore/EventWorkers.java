@@ -0,0 +1,262 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwEventProxy;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.svc.EventInfo;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Restore events on a number of worker threads while the parser carries
+ * on.
+ *
+ * <p>Each worker has its own RestoreIntf and so its own session, core
+ * events and access objects. Events are handed to the workers by owner so
+ * all of one owner's events are restored by one worker in dump order.
+ *
+ * <p>Each worker has a bounded queue. When it is full the parser waits.
+ *
+ * @version 1.0
+ */
+public class EventWorkers {
+  private RestoreGlobals globals;
+
+  private Worker[] workers;
+
+  private transient Logger log;
+
+  /* Queued to tell a worker there is no more */
+  private static final EventInfo endMarker = new EventInfo(new BwEventObj());
+
+  /* Queued to tell a worker to commit and report back */
+  private static final EventInfo syncMarker = new EventInfo(new BwEventObj());
+
+  private volatile CountDownLatch synced;
+
+  /* Events queued since the workers last committed */
+  private int sinceSync;
+
+  private class Worker extends Thread {
+    private RestoreIntf intf;
+
+    private BlockingQueue<EventInfo> queue;
+
+    private int restored;
+
+    Worker(final int num, final RestoreIntf intf, final int queueSize) {
+      super("EventWorker-" + num);
+
+      this.intf = intf;
+      queue = new ArrayBlockingQueue<EventInfo>(queueSize);
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          EventInfo ei = queue.take();
+
+          if (ei == endMarker) {
+            break;
+          }
+
+          if ((globals.checkpointer != null) &&
+              globals.checkpointer.failed()) {
+            // Stop - the parser sees we have gone
+            break;
+          }
+
+          if (ei == syncMarker) {
+            intf.endTransactionNow();
+            synced.countDown();
+            continue;
+          }
+
+          restore(globals, intf, ei);
+          restored++;
+        }
+      } catch (Throwable t) {
+        error(globals, getName() + " failed", t);
+      } finally {
+        try {
+          intf.endTransactionNow();
+          intf.close();
+        } catch (Throwable t) {
+          error(globals, getName() + " failed to commit", t);
+        }
+      }
+    }
+
+    void put(final EventInfo ei) throws Throwable {
+      while (!queue.offer(ei, 1, TimeUnit.SECONDS)) {
+        if (!isAlive()) {
+          throw new Exception(getName() + " has stopped");
+        }
+      }
+    }
+  }
+
+  /** Start globals.eventThreads workers
+   *
+   * @param globals
+   * @throws Throwable
+   */
+  public EventWorkers(final RestoreGlobals globals) throws Throwable {
+    this.globals = globals;
+
+    workers = new Worker[globals.eventThreads];
+
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(i, globals.rintf.newInstance(),
+                              globals.eventQueueSize);
+      workers[i].start();
+    }
+
+    info("Started " + workers.length + " event workers");
+  }
+
+  /** Queue an event for the worker handling its owner. Blocks while that
+   * worker is too far behind.
+   *
+   * @param ei
+   * @throws Throwable
+   */
+  public void add(final EventInfo ei) throws Throwable {
+    CheckpointRestore cp = globals.checkpointer;
+
+    if ((cp != null) && !cp.startWrite()) {
+      return;
+    }
+
+    String owner = ei.getEvent().getOwnerHref();
+    int h = 0;
+
+    if (owner != null) {
+      h = owner.hashCode() & 0x7fffffff;
+    }
+
+    workers[h % workers.length].put(ei);
+    sinceSync++;
+
+    if (cp != null) {
+      cp.endWrite();
+    }
+  }
+
+  /** Wait for the workers to restore and commit everything queued so far.
+   * The workers carry on afterwards.
+   *
+   * @throws Throwable
+   */
+  public void sync() throws Throwable {
+    if (sinceSync == 0) {
+      // Everything was committed by the last sync
+      return;
+    }
+
+    sinceSync = 0;
+    synced = new CountDownLatch(workers.length);
+
+    for (Worker w: workers) {
+      w.put(syncMarker);
+    }
+
+    while (!synced.await(1, TimeUnit.SECONDS)) {
+      for (Worker w: workers) {
+        if (!w.isAlive()) {
+          throw new Exception(w.getName() + " has stopped");
+        }
+      }
+    }
+  }
+
+  /** Wait for the workers to restore everything queued and stop.
+   *
+   * @throws Throwable
+   */
+  public void drain() throws Throwable {
+    for (Worker w: workers) {
+      if (w.isAlive()) {
+        w.put(endMarker);
+      }
+    }
+
+    for (Worker w: workers) {
+      w.join();
+      info(w.getName() + " restored " + w.restored + " events");
+    }
+  }
+
+  /* Restore one event. Failures are counted and logged but don't stop the
+   * restore - as for events restored by the parser.
+   */
+  static void restore(final RestoreGlobals globals,
+                      final RestoreIntf intf,
+                      final EventInfo ei) {
+    BwEvent entity = ei.getEvent();
+
+    if (entity instanceof BwEventProxy) {
+      entity = ((BwEventProxy)entity).getRef();
+    }
+
+    try {
+      intf.restoreEvent(ei);
+    } catch (CalFacadeException cfe) {
+      if (CalFacadeException.noRecurrenceInstances.equals(cfe.getMessage())) {
+        error(globals,
+              "Event has no recurrence instances - not restored." + entity,
+              null);
+      } else {
+        error(globals, "Unable to save event " + entity, cfe);
+      }
+    } catch (Throwable t) {
+      error(globals, "Unable to save event " + entity, t);
+    }
+  }
+
+  private Logger getLog() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void info(final String msg) {
+    getLog().info(msg);
+  }
+
+  private static void error(final RestoreGlobals globals,
+                            final String msg, final Throwable t) {
+    synchronized (globals) {
+      globals.errors++;
+    }
+
+    globals.messages.errorMessage(msg);
+    Logger.getLogger(EventWorkers.class).error(msg, t);
+  }
+}
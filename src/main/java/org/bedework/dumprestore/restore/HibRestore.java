@@ -82,7 +82,10 @@
  */
 package org.bedework.dumprestore.restore;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.bedework.calcore.AccessUtil;
@@ -96,6 +99,7 @@ import org.bedework.calcorei.CoreEventInfo;
 import org.bedework.calcorei.CoreEventsI;
 import org.bedework.calcorei.CoreEventsI.UpdateEventResult;
 import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwAlarm;
 import org.bedework.calfacade.BwAttendee;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCategory;
@@ -113,6 +117,7 @@ import org.bedework.calfacade.BwUser;
 import org.bedework.calfacade.CalFacadeDefs;
 import org.bedework.calfacade.RecurringRetrievalMode;
 import org.bedework.calfacade.RecurringRetrievalMode.Rmode;
+import org.bedework.calfacade.base.BwDbentity;
 import org.bedework.calfacade.base.BwShareableContainedDbentity;
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calfacade.svc.BwAdminGroup;
@@ -128,6 +133,7 @@ import org.hibernate.FlushMode;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 
 import com.idega.hibernate.SessionFactoryUtil;
 
@@ -152,6 +158,30 @@ public class HibRestore implements RestoreIntf {
 
 	  private HibSession hibSession;
 
+	  /* Used for the sections we restore with globals.stateless set */
+	  private StatelessSession statelessSess;
+
+	  /* Number in the current batch */
+	  private int curBatchSize;
+
+	  /* Who we are pretending to be for the core classes */
+	  private BwUser currentUser;
+
+	  private CalCallback calCallback = new CalCallback(this);
+
+	  /* The shared globals.calendarsTbl unless we are a worker */
+	  private RestoreGlobals.CalendarMap calendarsTbl;
+
+	  /* The shared globals caches unless we are a worker */
+	  private RestoreGlobals.PrincipalCache principalCache;
+	  private RestoreGlobals.UidCache<BwCategory> categoryCache;
+	  private RestoreGlobals.UidCache<BwLocation> locationCache;
+	  private RestoreGlobals.UidCache<BwContact> contactCache;
+
+	  /* True for an event worker - events arrive with entities the parser
+	   * looked up in another session */
+	  private boolean worker;
+
 	  private boolean manualFlush;
 
 	  private transient Logger log;
@@ -193,6 +223,31 @@ public class HibRestore implements RestoreIntf {
 	  @Override
 	  public void init(final RestoreGlobals globals) throws Throwable {
 	    this.globals = globals;
+	    calendarsTbl = globals.calendarsTbl;
+	    principalCache = globals.principalCache;
+	    categoryCache = globals.categoryCache;
+	    locationCache = globals.locationCache;
+	    contactCache = globals.contactCache;
+	  }
+
+	  @Override
+	  public RestoreIntf newInstance() throws Throwable {
+	    HibRestore hr = new HibRestore(sessFactory);
+
+	    hr.init(globals);
+
+	    /* Collections and other entities we hand out get attached to our
+	     * session. A worker must not share them.
+	     */
+	    hr.calendarsTbl = new RestoreGlobals.CalendarMap();
+	    hr.principalCache = new RestoreGlobals.PrincipalCache(
+	                               globals.principalCache.getMaxSize());
+	    hr.categoryCache = new RestoreGlobals.UidCache<BwCategory>();
+	    hr.locationCache = new RestoreGlobals.UidCache<BwLocation>();
+	    hr.contactCache = new RestoreGlobals.UidCache<BwContact>();
+	    hr.worker = true;
+
+	    return hr;
 	  }
 
 	  /* (non-Javadoc)
@@ -213,7 +268,11 @@ public class HibRestore implements RestoreIntf {
 	      closeHibSession();
 	    }
 
-	    globals.curHibBatchSize = 0;
+	    if (statelessSess != null) {
+	      closeStatelessSession();
+	    }
+
+	    curBatchSize = 0;
 	  }
 
 	  /* (non-Javadoc)
@@ -221,12 +280,29 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void endTransaction() throws Throwable {
-	    if ((globals.hibBatchSize > 0) &&
-	        (globals.curHibBatchSize < globals.hibBatchSize)) {
+	    if (globals.checkpointer != null) {
+	      /* Only the checkpoints commit. Anything committed after the last
+	       * checkpoint would be restored again on resume. Just stop the session
+	       * growing.
+	       */
+	      if ((globals.hibBatchSize <= 0) ||
+	          ((curBatchSize % globals.hibBatchSize) == 0)) {
+	        clearBatch();
+	      }
+
+	      return;
+	    }
+
+	    if (globals.hibBatchSize <= 0) {
+	      endTransactionNow();
+	      return;
+	    }
+
+	    if (curBatchSize < globals.hibBatchSize) {
 	      return;
 	    }
 
-	    endTransactionNow();
+	    commitBatch();
 	  }
 
 	  /* (non-Javadoc)
@@ -238,8 +314,13 @@ public class HibRestore implements RestoreIntf {
 	      if (hibSess != null) {
 	        hibSess.close();
 	      }
+
+	      if (statelessSess != null) {
+	        statelessSess.close();
+	      }
 	    } finally {
 	      hibSess = null;
+	      statelessSess = null;
 	    }
 	  }
 
@@ -248,12 +329,17 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void restoreSyspars(final BwSystem o) throws Throwable {
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	        o.setId(CalFacadeDefs.unsavedItemKey);
+	        save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -261,11 +347,16 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void updateSyspars(final BwSystem o) throws Throwable {
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.update(o);
+	        hibSess.update(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -278,12 +369,26 @@ public class HibRestore implements RestoreIntf {
 	    }
 
 	    try {
-	      openHibSess();
+	      write(new Write() {
+	        @Override
+	        public void write() throws Throwable {
+	          o.setId(CalFacadeDefs.unsavedItemKey);
 
-	      o.setId(CalFacadeDefs.unsavedItemKey);
-	      save(o);
+	          if (globals.stateless) {
+	            insert(o);
+	            endInsert();
+	          } else {
+	            openHibSess();
 
-	      closeHibSess();
+	            save(o);
+
+	            closeHibSess();
+	          }
+	        }
+	      });
+
+	      /* Most of these will be looked up again for their entities */
+	      principalCache.put(o);
 	    } catch (Throwable t) {
 	      handleException(t, "Exception restoring user " + o);
 	    }
@@ -294,11 +399,16 @@ public class HibRestore implements RestoreIntf {
 	    // Ensure id not set
 	    o.setId(CalFacadeDefs.unsavedItemKey);
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.save(o);
+	        hibSess.save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -306,20 +416,25 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void restoreAdminGroup(final BwAdminGroup o) throws Throwable {
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    if (!globals.onlyUsersMap.check(o.getGroupOwnerHref())) {
-	      o.setGroupOwnerHref(globals.getPublicUser().getPrincipalRef());
-	    }
+	        if (!globals.onlyUsersMap.check(o.getGroupOwnerHref())) {
+	          o.setGroupOwnerHref(globals.getPublicUser().getPrincipalRef());
+	        }
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	        o.setId(CalFacadeDefs.unsavedItemKey);
+	        save(o);
 
-	    if (globals.config.getDebug()) {
-	      log.debug("Saved admin group " + o);
-	    }
+	        if (globals.config.getDebug()) {
+	          log.debug("Saved admin group " + o);
+	        }
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 
 	    /* Save members. */
 
@@ -340,20 +455,25 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    BwAdminGroupEntry entry = new BwAdminGroupEntry();
+	        BwAdminGroupEntry entry = new BwAdminGroupEntry();
 
-	    entry.setGrp(o);
-	    entry.setMember(pr);
+	        entry.setGrp(o);
+	        entry.setMember(pr);
 
-	    if (globals.config.getDebug()) {
-	      log.debug("About to save " + entry);
-	    }
+	        if (globals.config.getDebug()) {
+	          log.debug("About to save " + entry);
+	        }
 
-	    save(entry);
+	        save(entry);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -374,8 +494,14 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void updateAdminGroup(final BwAdminGroup o) throws Throwable {
-	    updt(o);
-	    closeHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
+	        updt(o);
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -387,11 +513,16 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    save(o);
+	        save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -399,41 +530,57 @@ public class HibRestore implements RestoreIntf {
 	   */
 	  @Override
 	  public void restoreEvent(final EventInfo ei) throws Throwable {
-	    try {
-	      BwEvent ev = ei.getEvent();
-	      BwEvent saveEv = ev;
+	    final BwEvent ev = ei.getEvent();
 
-	      if (!globals.onlyUsersMap.check(ev)) {
-	        return;
-	      }
-	      globals.currentUser = (BwUser)globals.getPrincipal(ev.getOwnerHref());
+	    if (!globals.onlyUsersMap.check(ev)) {
+	      return;
+	    }
 
-	      if (ev instanceof BwEventProxy) {
-	        BwEventProxy proxy = (BwEventProxy)ev;
-	        saveEv = proxy.getRef();
-	      }
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        BwEvent saveEv = ev;
 
-	      openHibSess(FlushMode.MANUAL);
-	      CoreEventsI evi = getEvents((BwUser)globals.getPrincipal(ev.getCreatorHref()));
-	      UpdateEventResult uer = evi.addEvent(saveEv,
-	                                           ei.getOverrideProxies(),
-	                                           false, // scheduling
-	                                           false);
+	        currentUser = (BwUser)principal(ev.getOwnerHref());
 
-	      if (!uer.addedUpdated) {
-	        throw new CalFacadeException(uer.errorCode);
-	      }
-	      if (uer.failedOverrides != null) {
-	        error("Following overrides failed for event ");
-	        error(ev.toString());
+	        if (ev instanceof BwEventProxy) {
+	          BwEventProxy proxy = (BwEventProxy)ev;
+	          saveEv = proxy.getRef();
+	        }
+
+	        openHibSess(FlushMode.MANUAL);
+
+	        if (worker) {
+	          ownEntities(saveEv);
+
+	          if (ei.getOverrideProxies() != null) {
+	            for (BwEventProxy proxy: ei.getOverrideProxies()) {
+	              ownEntities(proxy.getRef());
+	            }
+	          }
+	        }
+
+	        CoreEventsI evi = getEvents((BwUser)principal(ev.getCreatorHref()));
+	        UpdateEventResult uer = evi.addEvent(saveEv,
+	                                             ei.getOverrideProxies(),
+	                                             false, // scheduling
+	                                             false);
+
+	        if (!uer.addedUpdated) {
+	          throw new CalFacadeException(uer.errorCode);
+	        }
+	        if (uer.failedOverrides != null) {
+	          error("Following overrides failed for event ");
+	          error(ev.toString());
 
-	        for (BwEventProxy proxy: uer.failedOverrides) {
-	          error(proxy.toString());
+	          for (BwEventProxy proxy: uer.failedOverrides) {
+	            error(proxy.toString());
+	          }
 	        }
+
+	        closeHibSess();
 	      }
-	    } finally {
-	      closeHibSess();
-	    }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -448,6 +595,7 @@ public class HibRestore implements RestoreIntf {
 	     * happen later.
 	     */
 	    openHibSess(FlushMode.MANUAL);
+	    flushBatch();
 	    CoreEventsI evi = getEvents(user);
 
 	    Collection<CoreEventInfo> ceis = evi.getEvent(colPath,
@@ -484,6 +632,7 @@ public class HibRestore implements RestoreIntf {
 	  @Override
 	  public boolean eventNameExists(final BwCalendar cal, final String name) throws Throwable {
 	    openHibSess();
+	    flushBatch();
 
 	    Query q = hibSess.createQuery("select ev.name from " + BwEventObj.class.getName() +
 	                                  " ev where ev.calendar=:cal " +
@@ -504,11 +653,16 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.update(o);
+	        hibSess.update(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  /* (non-Javadoc)
@@ -520,21 +674,40 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        if (globals.stateless) {
+	          insert(o.getWord());
+	          insert(o.getDescription());
+	          insert(o);
+	          endInsert();
+	        } else {
+	          openHibSess();
 
-	    save(o);
+	          save(o);
+
+	          closeHibSess();
+	        }
+	      }
+	    });
 
-	    closeHibSess();
+	    categoryCache.put(o.getUid(), o);
 	  }
 
 	  @Override
 	  public void restoreCalSuite(final BwCalSuite o) throws Throwable {
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	        o.setId(CalFacadeDefs.unsavedItemKey);
+	        save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 
@@ -547,34 +720,44 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        if (!globals.stateless) {
+	          openHibSess();
+	          flushBatch();
+	        }
 
-	    String uid = o.getUid();
+	        String uid = o.getUid();
 
-	    StringBuilder sb = new StringBuilder();
-	    sb.append("select ent.id from ");
-	    sb.append(BwLocation.class.getName());
-	    sb.append(" ent where uid=:uid");
+	        Integer i = getIdForUid(BwLocation.class, uid);
 
-	    hibSession.createQuery(sb.toString());
-	    hibSession.setString("uid", uid);
+	        if (i != null) {
+	          // Pre 3.5 did not use uid as unique key - make unique but warn.
+	          warn("Location found with duplicate uid: \n" + o.toString());
+	          o.initUid();
+	          info("Set to " + o.getUid());
 
-	    Integer i = (Integer)hibSession.getUnique();
+	          globals.locationsUidTbl.put(
+	             new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
+	        }
 
-	    if (i != null) {
-	      // Pre 3.5 did not use uid as unique key - make unique but warn.
-	      warn("Location found with duplicate uid: \n" + o.toString());
-	      o.initUid();
-	      info("Set to " + o.getUid());
+	        o.setId(CalFacadeDefs.unsavedItemKey);
 
-	      globals.locationsUidTbl.put(
-	         new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
-	    }
+	        if (globals.stateless) {
+	          insert(o.getAddress());
+	          insert(o.getSubaddress());
+	          insert(o);
+	          endInsert();
+	        } else {
+	          save(o);
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	          closeHibSess();
+	        }
+	      }
+	    });
 
-	    closeHibSess();
+	    locationCache.put(o.getUid(), o);
 	  }
 
 	  @Override
@@ -583,44 +766,58 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        if (!globals.stateless) {
+	          openHibSess();
+	          flushBatch();
+	        }
 
-	    String uid = o.getUid();
+	        String uid = o.getUid();
 
-	    StringBuilder sb = new StringBuilder();
-	    sb.append("select ent.id from ");
-	    sb.append(BwContact.class.getName());
-	    sb.append(" ent where uid=:uid");
+	        Integer i = getIdForUid(BwContact.class, uid);
 
-	    hibSession.createQuery(sb.toString());
-	    hibSession.setString("uid", uid);
+	        if (i != null) {
+	          // Pre 3.5 did not use uid as unique key - make unique but warn.
+	          warn("Contact found with duplicate uid: \n" + o.toString());
+	          o.initUid();
+	          info("Set to " + o.getUid());
 
-	    Integer i = (Integer)hibSession.getUnique();
+	          globals.contactsUidTbl.put(
+	             new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
+	        }
 
-	    if (i != null) {
-	      // Pre 3.5 did not use uid as unique key - make unique but warn.
-	      warn("Contact found with duplicate uid: \n" + o.toString());
-	      o.initUid();
-	      info("Set to " + o.getUid());
+	        o.setId(CalFacadeDefs.unsavedItemKey);
 
-	      globals.contactsUidTbl.put(
-	         new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
-	    }
+	        if (globals.stateless) {
+	          insert(o.getName());
+	          insert(o);
+	          endInsert();
+	        } else {
+	          save(o);
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	          closeHibSess();
+	        }
+	      }
+	    });
 
-	    closeHibSess();
+	    contactCache.put(o.getUid(), o);
 	  }
 
 	  @Override
 	  public void restoreFilter(final BwFilterDef o) throws Throwable {
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    o.setId(CalFacadeDefs.unsavedItemKey);
-	    save(o);
+	        o.setId(CalFacadeDefs.unsavedItemKey);
+	        save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
 	  @Override
@@ -629,51 +826,62 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
-
-	    /* If the indexer or some other activity is running this can result in
-	     * a preferences object being created. See if one exists.
-	     */
-
-	    Query q = hibSess.createQuery("from " + BwPreferences.class.getName() +
-	                                  " p where p.ownerHref=:ownerHref");
-	    q.setString("ownerHref", o.getOwnerHref());
-
-	    BwPreferences p = (BwPreferences)q.uniqueResult();
-
-	    if (p != null) {
-	      warn("Found instance of preferences");
-	      o.setId(p.getId());
-	      hibSess.merge(o);
-	    } else {
-
-	      /* Ensure views are unsaved objects */
-	      Collection<BwView> v = o.getViews();
-	      if (v != null) {
-	        for (BwView view: v) {
-	          view.setId(CalFacadeDefs.unsavedItemKey);
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
+
+	        /* If the indexer or some other activity is running this can result in
+	         * a preferences object being created. See if one exists.
+	         */
+
+	        Query q = hibSess.createQuery("from " + BwPreferences.class.getName() +
+	                                      " p where p.ownerHref=:ownerHref");
+	        q.setString("ownerHref", o.getOwnerHref());
+
+	        BwPreferences p = (BwPreferences)q.uniqueResult();
+
+	        if (p != null) {
+	          warn("Found instance of preferences");
+	          o.setId(p.getId());
+	          hibSess.merge(o);
+	        } else {
+
+	          /* Ensure views are unsaved objects */
+	          Collection<BwView> v = o.getViews();
+	          if (v != null) {
+	            for (BwView view: v) {
+	              view.setId(CalFacadeDefs.unsavedItemKey);
+	            }
+	          }
+
+	          o.setId(CalFacadeDefs.unsavedItemKey);
+	          save(o);
 	        }
-	      }
-
-	      o.setId(CalFacadeDefs.unsavedItemKey);
-	      save(o);
-	    }
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
 	  }
 
-	  /*
-	  public void restoreAlarm(BwAlarm o) throws Throwable {
+	  @Override
+	  public void restoreAlarm(final BwAlarm o) throws Throwable {
 	    if (!globals.onlyUsersMap.check(o)) {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSave(o);
+	        o.setId(CalFacadeDefs.unsavedItemKey);
+	        save(o);
 
-	    closeHibSess();
-	  }*/
+	        closeHibSess();
+	      }
+	    });
+	  }
 
 	  @Override
 	  public void update(final BwUser user) throws Throwable {
@@ -681,11 +889,18 @@ public class HibRestore implements RestoreIntf {
 	      return;
 	    }
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.update(user);
+	        hibSess.update(user);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
+
+	    principalCache.invalidate(user.getPrincipalRef());
 	  }
 
 	  /* (non-Javadoc)
@@ -695,10 +910,20 @@ public class HibRestore implements RestoreIntf {
 	  public BwCalendar getCalendar(final String path) throws Throwable {
 	    openHibSess();
 
+	    BwCalendar cal = current(BwCalendar.class, calendarsTbl.get(path));
+	    if (cal != null) {
+	      calendarsTbl.put(cal);
+	      return cal;
+	    }
+
 	    Query q = hibSess.createQuery("from " + BwCalendar.class.getName() +
 	                                  " cal where cal.path=:path");
 	    q.setString("path", path);
-	    BwCalendar cal = (BwCalendar)q.uniqueResult();
+	    cal = (BwCalendar)q.uniqueResult();
+
+	    if (cal != null) {
+	      calendarsTbl.put(cal);
+	    }
 
 	    return cal;
 	  }
@@ -716,11 +941,22 @@ public class HibRestore implements RestoreIntf {
 	  public BwCategory getCategory(final String uid) throws Throwable {
 	    openHibSess();
 
+	    BwCategory ent = current(BwCategory.class, categoryCache.lookup(uid));
+	    if (ent != null) {
+	      categoryCache.put(uid, ent);
+	      return ent;
+	    }
+
 	    Query q = hibSess.createQuery("from " + BwCategory.class.getName() +
 	                                  " cat where cat.uid=:uid");
 	    q.setString("uid", uid);
 
-	    return (BwCategory)q.uniqueResult();
+	    ent = (BwCategory)q.uniqueResult();
+	    if (ent != null) {
+	      categoryCache.put(uid, ent);
+	    }
+
+	    return ent;
 	  }
 
 	  /* (non-Javadoc)
@@ -746,11 +982,22 @@ public class HibRestore implements RestoreIntf {
 	  public BwContact getContact(final String uid) throws Throwable {
 	    openHibSess();
 
+	    BwContact ent = current(BwContact.class, contactCache.lookup(uid));
+	    if (ent != null) {
+	      contactCache.put(uid, ent);
+	      return ent;
+	    }
+
 	    Query q = hibSess.createQuery("from " + BwContact.class.getName() +
 	                                  " loc where loc.uid=:uid");
 	    q.setString("uid", uid);
 
-	    return (BwContact)q.uniqueResult();
+	    ent = (BwContact)q.uniqueResult();
+	    if (ent != null) {
+	      contactCache.put(uid, ent);
+	    }
+
+	    return ent;
 	  }
 
 	  /* (non-Javadoc)
@@ -773,11 +1020,22 @@ public class HibRestore implements RestoreIntf {
 	  public BwLocation getLocation(final String uid) throws Throwable {
 	    openHibSess();
 
+	    BwLocation ent = current(BwLocation.class, locationCache.lookup(uid));
+	    if (ent != null) {
+	      locationCache.put(uid, ent);
+	      return ent;
+	    }
+
 	    Query q = hibSess.createQuery("from " + BwLocation.class.getName() +
 	                                  " loc where loc.uid=:uid");
 	    q.setString("uid", uid);
 
-	    return (BwLocation)q.uniqueResult();
+	    ent = (BwLocation)q.uniqueResult();
+	    if (ent != null) {
+	      locationCache.put(uid, ent);
+	    }
+
+	    return ent;
 	  }
 
 	  /* (non-Javadoc)
@@ -806,11 +1064,18 @@ public class HibRestore implements RestoreIntf {
 	    // Ensure id not set
 	    val.setId(CalFacadeDefs.unsavedItemKey);
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.save(val);
+	        hibSess.save(val);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
+
+	    calendarsTbl.put(val);
 	  }
 
 	  /* (non-Javadoc)
@@ -825,12 +1090,18 @@ public class HibRestore implements RestoreIntf {
 	    // Ensure id not set
 	    o.setId(CalFacadeDefs.unsavedItemKey);
 
-	    openHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
 
-	    hibSess.save(o);
-	    globals.hibBatchSize++;
+	        hibSess.save(o);
 
-	    closeHibSess();
+	        closeHibSess();
+	      }
+	    });
+
+	    calendarsTbl.put(o);
 	  }
 
 	  @Override
@@ -841,10 +1112,17 @@ public class HibRestore implements RestoreIntf {
 	  @Override
 	  public void addCalendar(final BwCalendar val,
 	                          final String parentPath) throws Throwable {
-	    openHibSess();
-	    // XXX This will fail when we get a group owning something
-	    getCalendars((BwUser)globals.getPrincipal(val.getOwnerHref())).add(val, parentPath);
-	    closeHibSess();
+	    write(new Write() {
+	      @Override
+	      public void write() throws Throwable {
+	        openHibSess();
+	        // XXX This will fail when we get a group owning something
+	        getCalendars((BwUser)principal(val.getOwnerHref())).add(val, parentPath);
+	        closeHibSess();
+	      }
+	    });
+
+	    calendarsTbl.put(val);
 	  }
 
 	  /* ====================================================================
@@ -872,7 +1150,7 @@ public class HibRestore implements RestoreIntf {
 	    //access.setSuperUser(true);
 
 	    CalintfHelperHib.CalintfHelperHibCb chcb = new CalintfHelperHibCb(this);
-	    events = new CoreEvents(chcb, globals.calCallback,
+	    events = new CoreEvents(chcb, calCallback,
 	                            access,
 	                            currentMode,
 	                            false);  // sessionless
@@ -892,7 +1170,7 @@ public class HibRestore implements RestoreIntf {
 	    access.setSuperUser(true);
 
 	    CalintfHelperHib.CalintfHelperHibCb hsf = new CalintfHelperHibCb(this);
-	    calendars = new CoreCalendars(hsf, globals.calCallback,
+	    calendars = new CoreCalendars(hsf, calCallback,
 	                            access,
 	                            currentMode,
 	                            false);  // sessionless
@@ -902,6 +1180,80 @@ public class HibRestore implements RestoreIntf {
 	    return calendars;
 	  }
 
+	  private BwPrincipal principal(final String href) throws Throwable {
+	    return globals.getPrincipal(href, this, principalCache);
+	  }
+
+	  /* Events reach a worker holding the locations, contacts and categories
+	   * the parser looked up in its own session. Swap them for our own copies
+	   * so no entity is attached to two sessions at once.
+	   */
+	  private void ownEntities(final BwEvent ev) throws Throwable {
+	    BwLocation loc = ev.getLocation();
+
+	    if (loc != null) {
+	      BwLocation own = getLocation(loc.getUid());
+
+	      if (own != null) {
+	        ev.setLocation(own);
+	      }
+	    }
+
+	    Set<BwContact> contacts = ev.getContacts();
+
+	    if ((contacts != null) && !contacts.isEmpty()) {
+	      List<BwContact> cs = new ArrayList<BwContact>(contacts);
+
+	      contacts.clear();
+	      for (BwContact c: cs) {
+	        BwContact own = getContact(c.getUid());
+
+	        contacts.add((own == null) ? c : own);
+	      }
+	    }
+
+	    Set<BwCategory> cats = ev.getCategories();
+
+	    if ((cats != null) && !cats.isEmpty()) {
+	      List<BwCategory> cs = new ArrayList<BwCategory>(cats);
+
+	      cats.clear();
+	      for (BwCategory c: cs) {
+	        BwCategory own = getCategory(c.getUid());
+
+	        cats.add((own == null) ? c : own);
+	      }
+	    }
+	  }
+
+	  private static class CalCallback implements CalintfHelperHib.Callback {
+	    private HibRestore intf;
+
+	    CalCallback(final HibRestore intf) {
+	      this.intf = intf;
+	    }
+
+	    @Override
+	    public void rollback() throws CalFacadeException {
+	      intf.hibSession.rollback();
+	    }
+
+	    @Override
+	    public BwSystem getSyspars() throws CalFacadeException {
+	      return intf.globals.getSyspars();
+	    }
+
+	    @Override
+	    public BwUser getUser() throws CalFacadeException {
+	      return intf.currentUser;
+	    }
+
+	    @Override
+	    public boolean getSuperUser() throws CalFacadeException {
+	      return true;
+	    }
+	  }
+
 	  private class AccessUtilCb extends AccessUtilI.CallBack {
 	    private HibRestore intf;
 
@@ -915,7 +1267,7 @@ public class HibRestore implements RestoreIntf {
 	    @Override
 	    public AccessPrincipal getPrincipal(final String href) throws CalFacadeException {
 	      try {
-	        return globals.getPrincipal(href);
+	        return intf.principal(href);
 	      } catch (Throwable t) {
 	        throw new CalFacadeException(t);
 	      }
@@ -1010,16 +1362,81 @@ public class HibRestore implements RestoreIntf {
 	    }
 	  }
 
+	  /* One entity's write to the session */
+	  private interface Write {
+	    void write() throws Throwable;
+	  }
+
+	  /* Run the write for one entity. Hibernate and the core classes leave the
+	   * session unusable after they throw, so any failure abandons the session
+	   * and the rest of the batch with it. Entities the rules reject never get
+	   * here.
+	   */
+	  private void write(final Write w) throws Throwable {
+	    if (checkpointFailed()) {
+	      globals.checkpointer.checkFailed();
+	    }
+
+	    try {
+	      w.write();
+	    } catch (Throwable t) {
+	      discardBatch();
+	      throw t;
+	    }
+	  }
+
 	  private void handleException(final Throwable t, final String msg) {
 	    error(msg); // Update count
 	    log.error(this, t);
+	  }
+
+	  /* Roll back and drop the session after a failure. Everything in the
+	   * current batch is lost with it.
+	   */
+	  private synchronized void discardBatch() {
+	    if (curBatchSize > 0) {
+	      error("Discarded batch of " + curBatchSize +
+	            " entities - they are not restored");
+
+	      if (globals.checkpointer != null) {
+	        /* They are past the last checkpoint. Stop before the next one
+	         * records them as done. */
+	        globals.checkpointer.lost(curBatchSize);
+	      }
+
+	      /* Some of those may be cached entities that never got saved. Their
+	       * ids refer to rows that don't exist.
+	       */
+	      principalCache.invalidateAll();
+	      categoryCache.invalidateAll();
+	      locationCache.invalidateAll();
+	      contactCache.invalidateAll();
+	      calendarsTbl.clear();
+	    }
+
+	    curBatchSize = 0;
 
 	    if (hibSess != null) {
 	      try {
-	        closeHibSession();
+	        hibSess.getTransaction().rollback();
+	      } catch (Throwable t1) {}
+
+	      try {
+	        hibSess.close();
 	      } catch (Throwable t1) {}
 	    }
 	    hibSess = null;
+
+	    if (statelessSess != null) {
+	      try {
+	        statelessSess.getTransaction().rollback();
+	      } catch (Throwable t1) {}
+
+	      try {
+	        statelessSess.close();
+	      } catch (Throwable t1) {}
+	    }
+	    statelessSess = null;
 	  }
 
 	  private void handleException(final Throwable t,
@@ -1042,14 +1459,66 @@ public class HibRestore implements RestoreIntf {
 	      hibSess.setFlushMode(fm);
 	      hibSess.beginTransaction();
 	      manualFlush = fm.equals(FlushMode.MANUAL);
+	    } else if (!fm.equals(hibSess.getFlushMode())) {
+	      /* Batched session - write what we have under the old mode */
+	      hibSess.flush();
+	      hibSess.setFlushMode(fm);
+	      manualFlush = fm.equals(FlushMode.MANUAL);
 	    }
 	  }
 
+	  /* One entity done - count it against the batch.
+	   */
 	  private void closeHibSess() throws Throwable {
+	    if (hibSess != null) {
+	      curBatchSize++;
+	    }
+
 	    endTransaction();
 	  }
 
+	  /* Commit the batch but keep the session. Clearing it stops the session
+	   * cache growing with every entity we restore.
+	   */
+	  private synchronized void commitBatch() throws Throwable {
+	    if (hibSess != null) {
+	      hibSess.flush();
+	      hibSess.getTransaction().commit();
+	      hibSess.clear();
+	      hibSess.beginTransaction();
+	      synchronized (globals) {
+	        globals.batchCommits++;
+	      }
+	    }
+
+	    curBatchSize = 0;
+	  }
+
+	  /* Write the batch but leave the transaction open for the checkpoint to
+	   * commit. Every entity was flushed as it ended.
+	   */
+	  private synchronized void clearBatch() throws Throwable {
+	    if (hibSess != null) {
+	      hibSess.flush();
+	      hibSess.clear();
+	    }
+	  }
+
+	  /* Queries don't see the unflushed entities in the current batch.
+	   */
+	  private void flushBatch() throws Throwable {
+	    if ((hibSess != null) && (curBatchSize > 0)) {
+	      hibSess.flush();
+	    }
+	  }
+
 	  private synchronized void closeHibSession() throws Throwable {
+	    if (checkpointFailed()) {
+	      // Never commit past a lost batch
+	      discardBatch();
+	      globals.checkpointer.checkFailed();
+	    }
+
 	    try {
 	      if (manualFlush) {
 	        hibSess.flush();
@@ -1066,10 +1535,118 @@ public class HibRestore implements RestoreIntf {
 	    }
 	  }
 
+	  /* The caches outlive the session - and commitBatch clears it - so a
+	   * cached entity may be detached. Use the instance in this session: get()
+	   * returns it if the session has it and otherwise reads it by id. Using
+	   * the detached one risks NonUniqueObjectException and lazy loading
+	   * failures.
+	   */
+	  private <T extends BwDbentity<?>> T current(final Class<T> cl,
+	                                             final T ent) throws Throwable {
+	    if ((ent == null) || hibSess.contains(ent)) {
+	      return ent;
+	    }
+
+	    return cl.cast(hibSess.get(cl, ent.getId()));
+	  }
+
 	  private void save(final Object o) throws Throwable {
 	    hibSess.save(o);
 	  }
 
+	  /* Id of any entity of the class already using this uid */
+	  private Integer getIdForUid(final Class<?> cl,
+	                              final String uid) throws Throwable {
+	    StringBuilder sb = new StringBuilder();
+	    sb.append("select ent.id from ");
+	    sb.append(cl.getName());
+	    sb.append(" ent where uid=:uid");
+
+	    if (globals.stateless) {
+	      /* Must be the stateless session - it's the one that sees what we
+	       * inserted in this batch.
+	       */
+	      Query q = openStatelessSess().createQuery(sb.toString());
+	      q.setString("uid", uid);
+
+	      return (Integer)q.uniqueResult();
+	    }
+
+	    hibSession.createQuery(sb.toString());
+	    hibSession.setString("uid", uid);
+
+	    return (Integer)hibSession.getUnique();
+	  }
+
+	  /* Straight insert - no cache, no dirty checking and no cascades, so
+	   * anything the entity refers to has to be inserted first. The generated
+	   * id is set in the entity so the restore tables refer to the new row.
+	   */
+	  private void insert(final BwDbentity<?> o) throws Throwable {
+	    if (o == null) {
+	      return;
+	    }
+
+	    o.setId((Integer)openStatelessSess().insert(o));
+	  }
+
+	  /* One entity inserted - count it against the batch.
+	   */
+	  private void endInsert() throws Throwable {
+	    curBatchSize++;
+
+	    if (globals.checkpointer != null) {
+	      // Committed by the next checkpoint
+	      return;
+	    }
+
+	    if ((globals.hibBatchSize > 0) &&
+	        (curBatchSize < globals.hibBatchSize)) {
+	      return;
+	    }
+
+	    statelessSess.getTransaction().commit();
+	    statelessSess.beginTransaction();
+
+	    if (globals.hibBatchSize > 0) {
+	      synchronized (globals) {
+	        globals.batchCommits++;
+	      }
+	    }
+
+	    curBatchSize = 0;
+	  }
+
+	  private synchronized StatelessSession openStatelessSess() throws Throwable {
+	    if (statelessSess == null) {
+	      statelessSess = sessFactory.openStatelessSession();
+	      statelessSess.beginTransaction();
+	    }
+
+	    return statelessSess;
+	  }
+
+	  private synchronized void closeStatelessSession() throws Throwable {
+	    if (checkpointFailed()) {
+	      discardBatch();
+	      globals.checkpointer.checkFailed();
+	    }
+
+	    try {
+	      statelessSess.getTransaction().commit();
+	    } finally {
+	      try {
+	        statelessSess.close();
+	      } finally {
+	        statelessSess = null;
+	      }
+	    }
+	  }
+
+	  private boolean checkpointFailed() {
+	    return (globals.checkpointer != null) && globals.checkpointer.failed();
+	  }
+
 	  private void updt(final Object o) throws Throwable {
 	    hibSess.update(o);
 	  }
@@ -1087,12 +1664,16 @@ public class HibRestore implements RestoreIntf {
 	  }
 
 	  protected void warn(final String msg) {
-	    globals.warnings++;
+	    synchronized (globals) {
+	      globals.warnings++;
+	    }
 	    getLog().warn(msg);
 	  }
 
 	  protected void error(final String msg) {
-	    globals.errors++;
+	    synchronized (globals) {
+	      globals.errors++;
+	    }
 	    getLog().error(msg);
 	  }
 }
@@ -0,0 +1,266 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/** Map of int keys to values using open addressing.
+ *
+ * <p>The restore keeps tables from dump ids to restored entities or uids.
+ * For a large dump there are millions of entries and a HashMap costs an
+ * Integer and an entry object for each of them. Here a key is an int in
+ * one array and its value a reference at the same index in another.
+ *
+ * <p>Not synchronized.
+ *
+ * @param <V>
+ */
+public class IntMap<V> {
+  /* Marks an empty slot. The key itself is held outside the table */
+  private static final int freeKey = Integer.MIN_VALUE;
+
+  private static final int initialCapacity = 16;
+
+  private int[] keys;
+
+  private Object[] vals;
+
+  /* Number of entries in the table */
+  private int size;
+
+  /* Size at which we grow */
+  private int threshold;
+
+  private boolean hasFreeKey;
+
+  private V freeVal;
+
+  /**
+   */
+  public IntMap() {
+    alloc(initialCapacity);
+  }
+
+  /**
+   * @param key
+   * @return value or null
+   */
+  @SuppressWarnings("unchecked")
+  public V get(final int key) {
+    if (key == freeKey) {
+      return freeVal;
+    }
+
+    int i = find(key);
+
+    if (keys[i] == freeKey) {
+      return null;
+    }
+
+    return (V)vals[i];
+  }
+
+  /**
+   * @param key
+   * @return true if we have an entry for the key
+   */
+  public boolean containsKey(final int key) {
+    if (key == freeKey) {
+      return hasFreeKey;
+    }
+
+    return keys[find(key)] != freeKey;
+  }
+
+  /**
+   * @param key
+   * @param val
+   * @return previous value or null
+   */
+  @SuppressWarnings("unchecked")
+  public V put(final int key, final V val) {
+    if (key == freeKey) {
+      V prev = freeVal;
+
+      hasFreeKey = true;
+      freeVal = val;
+      return prev;
+    }
+
+    int i = find(key);
+
+    if (keys[i] != freeKey) {
+      V prev = (V)vals[i];
+      vals[i] = val;
+      return prev;
+    }
+
+    keys[i] = key;
+    vals[i] = val;
+    size++;
+
+    if (size >= threshold) {
+      rehash(keys.length * 2);
+    }
+
+    return null;
+  }
+
+  /**
+   * @return number of entries
+   */
+  public int size() {
+    if (hasFreeKey) {
+      return size + 1;
+    }
+
+    return size;
+  }
+
+  /**
+   * @return true for no entries
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** Drop everything and shrink back
+   */
+  public void clear() {
+    alloc(initialCapacity);
+    size = 0;
+    hasFreeKey = false;
+    freeVal = null;
+  }
+
+  /**
+   * @return the values - a copy
+   */
+  @SuppressWarnings("unchecked")
+  public Collection<V> values() {
+    ArrayList<V> res = new ArrayList<V>(size());
+
+    if (hasFreeKey) {
+      res.add(freeVal);
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != freeKey) {
+        res.add((V)vals[i]);
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * @return the keys - a copy
+   */
+  public int[] keys() {
+    int[] res = new int[size()];
+    int j = 0;
+
+    if (hasFreeKey) {
+      res[j] = freeKey;
+      j++;
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != freeKey) {
+        res[j] = keys[i];
+        j++;
+      }
+    }
+
+    return res;
+  }
+
+  /** Approximate number of bytes held by the table itself - not by the
+   * values. References are taken as 8 bytes.
+   *
+   * @return bytes
+   */
+  public long memorySize() {
+    return 2 * arrayHeader + (keys.length * 4L) + (vals.length * 8L);
+  }
+
+  /* Size of an array object header */
+  static final int arrayHeader = 16;
+
+  /* Spread the bits of the key. Dump ids are mostly sequential so a plain
+   * mask would do, but ids from merged dumps are not.
+   */
+  static int hash(final int key) {
+    int h = key * 0x9E3779B9;
+
+    return h ^ (h >>> 16);
+  }
+
+  /* Index of the key or of the free slot where it would go */
+  private int find(final int key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+
+    for (;;) {
+      int k = keys[i];
+
+      if ((k == freeKey) || (k == key)) {
+        return i;
+      }
+
+      i = (i + 1) & mask;
+    }
+  }
+
+  private void alloc(final int capacity) {
+    keys = new int[capacity];
+    vals = new Object[capacity];
+    threshold = capacity * 3 / 4;
+
+    Arrays.fill(keys, freeKey);
+  }
+
+  private void rehash(final int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldVals = vals;
+
+    alloc(capacity);
+
+    int mask = capacity - 1;
+
+    for (int j = 0; j < oldKeys.length; j++) {
+      int k = oldKeys[j];
+
+      if (k == freeKey) {
+        continue;
+      }
+
+      int i = hash(k) & mask;
+
+      while (keys[i] != freeKey) {
+        i = (i + 1) & mask;
+      }
+
+      keys[i] = k;
+      vals[i] = oldVals[j];
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.util.Arrays;
+
+/** Map of int keys to lists of ints.
+ *
+ * <p>The keys are held in an IntMap of list heads. The lists are chains
+ * through two shared int arrays - one for the values and one for the
+ * index of the next entry - so adding a value costs 8 bytes and no
+ * objects.
+ *
+ * <p>Not synchronized.
+ */
+public class IntMultiMap {
+  private static final int[] noValues = new int[0];
+
+  /* Key to {first, last, count} - indexes into the chains */
+  private IntMap<int[]> lists = new IntMap<int[]>();
+
+  private int[] values = new int[16];
+
+  /* Index of the next entry in the same list. -1 for the end */
+  private int[] next = new int[16];
+
+  private int numValues;
+
+  /** Add a value to the end of the list for the key
+   *
+   * @param key
+   * @param val
+   */
+  public void put(final int key, final int val) {
+    if (numValues == values.length) {
+      values = Arrays.copyOf(values, numValues * 2);
+      next = Arrays.copyOf(next, numValues * 2);
+    }
+
+    int i = numValues;
+    numValues++;
+
+    values[i] = val;
+    next[i] = -1;
+
+    int[] l = lists.get(key);
+
+    if (l == null) {
+      lists.put(key, new int[]{i, i, 1});
+      return;
+    }
+
+    next[l[1]] = i;
+    l[1] = i;
+    l[2]++;
+  }
+
+  /**
+   * @param key
+   * @return values in the order added - never null
+   */
+  public int[] get(final int key) {
+    int[] l = lists.get(key);
+
+    if (l == null) {
+      return noValues;
+    }
+
+    int[] res = new int[l[2]];
+    int i = l[0];
+
+    for (int j = 0; j < res.length; j++) {
+      res[j] = values[i];
+      i = next[i];
+    }
+
+    return res;
+  }
+
+  /**
+   * @param key
+   * @return true if we have any values for the key
+   */
+  public boolean containsKey(final int key) {
+    return lists.containsKey(key);
+  }
+
+  /**
+   * @return number of keys
+   */
+  public int size() {
+    return lists.size();
+  }
+
+  /**
+   * @return total number of values
+   */
+  public int numValues() {
+    return numValues;
+  }
+
+  /** Approximate number of bytes held by the map
+   *
+   * @return bytes
+   */
+  public long memorySize() {
+    return lists.memorySize() +
+           (lists.size() * (IntMap.arrayHeader + 12L)) +
+           (2 * IntMap.arrayHeader) + (values.length * 8L);
+  }
+}
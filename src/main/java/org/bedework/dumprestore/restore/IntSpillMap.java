@@ -0,0 +1,158 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+/** The int keyed version of SpillMap. Starts as an IntMap.
+ *
+ * <p>All methods are synchronized.
+ *
+ * @param <V>
+ */
+public class IntSpillMap<V> {
+  private TableStores stores;
+
+  private String name;
+
+  private Codec<V> valCodec;
+
+  private IntMap<V> heap = new IntMap<V>();
+
+  /* Non-null once we've moved */
+  private ByteStore store;
+
+  /**
+   * @param stores
+   * @param name - of the table for messages
+   * @param valCodec
+   */
+  public IntSpillMap(final TableStores stores,
+                     final String name,
+                     final Codec<V> valCodec) {
+    this.stores = stores;
+    this.name = name;
+    this.valCodec = valCodec;
+  }
+
+  /**
+   * @param key
+   * @return value or null
+   */
+  public synchronized V get(final int key) {
+    if (store == null) {
+      return heap.get(key);
+    }
+
+    try {
+      return valCodec.decode(store.get(keyBytes(key)));
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  /**
+   * @param key
+   * @return true if we have an entry for the key
+   */
+  public synchronized boolean containsKey(final int key) {
+    if (store == null) {
+      return heap.containsKey(key);
+    }
+
+    try {
+      return store.containsKey(keyBytes(key));
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  /**
+   * @param key
+   * @param val
+   */
+  public synchronized void put(final int key, final V val) {
+    try {
+      if (store == null) {
+        heap.put(key, val);
+
+        if (stores.spill(heap.size())) {
+          spill();
+        }
+
+        return;
+      }
+
+      store.put(keyBytes(key), valCodec.encode(val));
+      store = stores.checkStore(name, store);
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  /**
+   * @return number of entries
+   */
+  public synchronized int size() {
+    if (store == null) {
+      return heap.size();
+    }
+
+    return store.size();
+  }
+
+  /**
+   * @return where the entries are
+   */
+  public synchronized String getKind() {
+    if (store == null) {
+      return "heap";
+    }
+
+    return store.getKind();
+  }
+
+  /**
+   * @return approximate bytes held by the table - not including the values
+   *         while on the heap
+   */
+  public synchronized long memorySize() {
+    if (store == null) {
+      return heap.memorySize();
+    }
+
+    return store.memorySize();
+  }
+
+  private static byte[] keyBytes(final int key) {
+    return new byte[]{(byte)(key >>> 24),
+                      (byte)(key >>> 16),
+                      (byte)(key >>> 8),
+                      (byte)key};
+  }
+
+  private void spill() throws Throwable {
+    ByteStore s = stores.newStore(name, heap.size());
+
+    for (int k: heap.keys()) {
+      s.put(keyBytes(k), valCodec.encode(heap.get(k)));
+    }
+
+    store = s;
+    heap = new IntMap<V>();
+  }
+}
@@ -22,8 +22,8 @@ package org.bedework.dumprestore.restore;
 import org.bedework.calfacade.base.BwOwnedDbentity;
 import org.bedework.calfacade.base.BwShareableDbentity;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** Handle the onlyusers processing.
  *
@@ -36,14 +36,101 @@ public class OnlyUsersMap {
    */
   private boolean onlyUsers;
 
-  /* Users we preserve */
-  private HashMap<String, String> map = new HashMap<String, String>();
+  /** Number of checked hrefs we remember */
+  public static final int memoSize = 10000;
 
-  /** Users we skipped */
-  private HashMap<String, String> skipped = new HashMap<String, String>();
+  /* Users and user patterns we preserve */
+  private Node root = new Node();
 
-  /** User patterns we preserve */
-  private ArrayList<String> patterns = new ArrayList<String>();
+  /* Recently checked hrefs - true if preserved */
+  private Memo memo = new Memo(memoSize);
+
+  /* A trie node. Children are held in parallel arrays sorted by character.
+   */
+  private static class Node {
+    char[] chars = new char[0];
+
+    Node[] next = new Node[0];
+
+    /* A pattern ends here - anything following matches */
+    boolean prefix;
+
+    /* A user ends here */
+    boolean exact;
+
+    Node find(final char c) {
+      int i = search(c);
+
+      if (i < 0) {
+        return null;
+      }
+
+      return next[i];
+    }
+
+    Node add(final char c) {
+      int i = search(c);
+
+      if (i >= 0) {
+        return next[i];
+      }
+
+      i = -(i + 1);
+
+      char[] nchars = new char[chars.length + 1];
+      Node[] nnext = new Node[next.length + 1];
+
+      System.arraycopy(chars, 0, nchars, 0, i);
+      System.arraycopy(next, 0, nnext, 0, i);
+      System.arraycopy(chars, i, nchars, i + 1, chars.length - i);
+      System.arraycopy(next, i, nnext, i + 1, next.length - i);
+
+      Node n = new Node();
+      nchars[i] = c;
+      nnext[i] = n;
+
+      chars = nchars;
+      next = nnext;
+
+      return n;
+    }
+
+    private int search(final char c) {
+      int lo = 0;
+      int hi = chars.length - 1;
+
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        char mc = chars[mid];
+
+        if (mc < c) {
+          lo = mid + 1;
+        } else if (mc > c) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+
+      return -(lo + 1);
+    }
+  }
+
+  /* Least recently checked hrefs are dropped when full */
+  private static class Memo extends LinkedHashMap<String, Boolean> {
+    private int maxSize;
+
+    Memo(final int maxSize) {
+      super(16, 0.75f, true);  // access order
+
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+      return size() > maxSize;
+    }
+  }
 
   /**
    *
@@ -64,12 +151,26 @@ public class OnlyUsersMap {
   /**
    * @param val
    */
-  public void add(String val) {
-    if (val.endsWith("*")) {
-      patterns.add(val.substring(0, val.length() - 1));
+  public synchronized void add(String val) {
+    boolean prefix = val.endsWith("*");
+    int len = val.length();
+
+    if (prefix) {
+      len--;
+    }
+
+    Node n = root;
+    for (int i = 0; i < len; i++) {
+      n = n.add(val.charAt(i));
+    }
+
+    if (prefix) {
+      n.prefix = true;
     } else {
-      map.put(val, val);
+      n.exact = true;
     }
+
+    memo.clear();
   }
 
   /** See if we skip this one
@@ -77,29 +178,47 @@ public class OnlyUsersMap {
    * @param href to check
    * @return boolean true if user if OK
    */
-  public boolean check(String href) {
+  public synchronized boolean check(String href) {
     if (!onlyUsers) {
       return true;
     }
 
-    if (map.get(href) == null) {
-      if (skipped.get(href) != null) {
-        return false;
-      }
+    if (href == null) {
+      return false;
+    }
 
-      for (String prefix: patterns) {
-        if (href.startsWith(prefix)) {
-          map.put(href, href);
-          return true;
-        }
+    Boolean ok = memo.get(href);
+
+    if (ok == null) {
+      ok = Boolean.valueOf(match(href));
+
+      // Bypass the walk next time
+      memo.put(href, ok);
+    }
+
+    return ok;
+  }
+
+  /* One walk down the trie - true at the first pattern passed or if a
+   * user ends where the href does.
+   */
+  private boolean match(String href) {
+    Node n = root;
+    int len = href.length();
+
+    for (int i = 0; i < len; i++) {
+      if (n.prefix) {
+        return true;
       }
 
-      // Bypass the above next time
-      skipped.put(href, href);
-      return false;
+      n = n.find(href.charAt(i));
+
+      if (n == null) {
+        return false;
+      }
     }
 
-    return true;
+    return n.prefix || n.exact;
   }
 
   /** See if we skip this one
@@ -19,18 +19,21 @@
 package org.bedework.dumprestore.restore;
 
 /** Class to represent the key for entities indexed by uid and owner.
+ *
+ * <p>Keys are immutable once built and carry their hash so the uid remap
+ * tables never rehash the strings. Lookups should go through a
+ * {@link Probe}, which can be refilled for each lookup.
  *
  * @author Mike Douglass   douglm at rpi.edu
  */
-public class OwnerUidKey implements Comparable {
-  /** */
-  public String ownerHref;
-  /** */
-  public String uid;
+public class OwnerUidKey implements Comparable<OwnerUidKey> {
+  String ownerHref;
 
-  /** No-arg Constructor
-   */
-  public OwnerUidKey() {
+  String uid;
+
+  int hash;
+
+  OwnerUidKey() {
   }
 
   /** Constructor
@@ -38,16 +41,10 @@ public class OwnerUidKey implements Comparable {
    * @param ownerHref
    * @param uid
    */
-  public OwnerUidKey(String ownerHref, String uid) {
+  public OwnerUidKey(final String ownerHref, final String uid) {
     this.ownerHref = ownerHref;
     this.uid = uid;
-  }
-
-  /**
-   * @param val BwPrincipal
-   */
-  public void setOwnerHref(String val) {
-    ownerHref = val;
+    hash = hash(ownerHref, uid);
   }
 
   /**
@@ -57,13 +54,6 @@ public class OwnerUidKey implements Comparable {
     return ownerHref;
   }
 
-  /**
-   * @param val
-   */
-  public void setUid(String val) {
-    uid = val;
-  }
-
   /**
    * @return  String uid
    */
@@ -71,43 +61,94 @@ public class OwnerUidKey implements Comparable {
     return uid;
   }
 
+  /** A key which can be refilled and used to look up the uid tables
+   * without allocating. It must never be stored - use key() to get an
+   * immutable copy.
+   */
+  public static final class Probe extends OwnerUidKey {
+    /** Clear for the next lookup
+     */
+    public void reset() {
+      ownerHref = null;
+      uid = null;
+      hash = 0;
+    }
+
+    /**
+     * @param val
+     */
+    public void setOwnerHref(final String val) {
+      ownerHref = val;
+      hash = 0;
+    }
+
+    /**
+     * @param val
+     */
+    public void setUid(final String val) {
+      uid = val;
+      hash = 0;
+    }
+
+    /**
+     * @return an immutable key with the current values
+     */
+    public OwnerUidKey key() {
+      return new OwnerUidKey(ownerHref, uid);
+    }
+
+    @Override
+    public int hashCode() {
+      if (hash == 0) {
+        hash = hash(ownerHref, uid);
+      }
+
+      return hash;
+    }
+  }
+
   /**
    * @param o
    * @return int
    */
-  public int compareTo(Object o) {
+  public int compareTo(final OwnerUidKey o) {
     if (o == null) {
       return -1;
     }
 
-    if (!(o instanceof OwnerUidKey)) {
-      return -1;
-    }
-
-    OwnerUidKey that = (OwnerUidKey)o;
-
-    int res = ownerHref.compareTo(that.ownerHref);
+    int res = compare(ownerHref, o.ownerHref);
     if (res != 0) {
       return res;
     }
 
-    return uid.compareTo(that.uid);
+    return compare(uid, o.uid);
   }
 
+  @Override
   public int hashCode() {
-    return ownerHref.hashCode() * uid.hashCode();
+    return hash;
   }
 
-  /* We always use the compareTo method
-   */
-  public boolean equals(Object obj) {
+  @Override
+  public boolean equals(final Object obj) {
     if (this == obj) {
       return true;
     }
 
-    return compareTo(obj) == 0;
+    if (!(obj instanceof OwnerUidKey)) {
+      return false;
+    }
+
+    OwnerUidKey that = (OwnerUidKey)obj;
+
+    if (hashCode() != that.hashCode()) {
+      return false;
+    }
+
+    return eq(ownerHref, that.ownerHref) && eq(uid, that.uid);
   }
 
+  @Override
   public String toString() {
     StringBuilder sb = new StringBuilder("OwnerUidKey[");
 
@@ -118,4 +159,34 @@ public class OwnerUidKey implements Comparable {
 
     return sb.toString();
   }
+
+  private static int hash(final String ownerHref, final String uid) {
+    int h = 31 * ((ownerHref == null) ? 0 : ownerHref.hashCode());
+
+    if (uid != null) {
+      h += uid.hashCode();
+    }
+
+    return h;
+  }
+
+  private static boolean eq(final String a, final String b) {
+    if (a == null) {
+      return b == null;
+    }
+
+    return a.equals(b);
+  }
+
+  private static int compare(final String a, final String b) {
+    if (a == null) {
+      return (b == null) ? 0 : -1;
+    }
+
+    if (b == null) {
+      return 1;
+    }
+
+    return a.compareTo(b);
+  }
 }
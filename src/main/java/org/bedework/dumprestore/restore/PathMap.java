@@ -0,0 +1,231 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.util.HashMap;
+
+/** Map of "/" separated paths to values held as a trie of path segments.
+ *
+ * <p>Collection paths share long prefixes and reuse a small set of names
+ * (calendar, Inbox, Outbox...) so each segment is held once per node and
+ * its string is shared across the whole trie. That keeps millions of paths
+ * to a fraction of the space of a map keyed by the full path.
+ *
+ * <p>All methods are synchronized.
+ *
+ * @param <T>
+ */
+public class PathMap<T> {
+  /* Nodes with more children than this hash them */
+  private static final int maxLinearChildren = 8;
+
+  private static class Node<T> {
+    String segment;
+
+    T value;
+
+    /* Up to maxLinearChildren children - scanned */
+    Node<T>[] kids;
+    int numKids;
+
+    /* More than that - hashed by segment */
+    HashMap<String, Node<T>> hashedKids;
+
+    Node(final String segment) {
+      this.segment = segment;
+    }
+
+    Node<T> getChild(final String path, final int start, final int end) {
+      if (hashedKids != null) {
+        return hashedKids.get(path.substring(start, end));
+      }
+
+      int len = end - start;
+      for (int i = 0; i < numKids; i++) {
+        String seg = kids[i].segment;
+
+        if ((seg.length() == len) &&
+            path.regionMatches(start, seg, 0, len)) {
+          return kids[i];
+        }
+      }
+
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    Node<T> addChild(final String seg) {
+      Node<T> n = new Node<T>(seg);
+
+      if (hashedKids != null) {
+        hashedKids.put(seg, n);
+        return n;
+      }
+
+      if (kids == null) {
+        kids = new Node[2];
+      } else if (numKids == kids.length) {
+        if (numKids == maxLinearChildren) {
+          hashedKids = new HashMap<String, Node<T>>();
+          for (int i = 0; i < numKids; i++) {
+            hashedKids.put(kids[i].segment, kids[i]);
+          }
+          kids = null;
+          numKids = 0;
+
+          hashedKids.put(seg, n);
+          return n;
+        }
+
+        Node<T>[] newKids = new Node[Math.min(numKids * 2,
+                                              maxLinearChildren)];
+        System.arraycopy(kids, 0, newKids, 0, numKids);
+        kids = newKids;
+      }
+
+      kids[numKids] = n;
+      numKids++;
+
+      return n;
+    }
+  }
+
+  private Node<T> root = new Node<T>("");
+
+  /* One copy of each segment string */
+  private HashMap<String, String> segments = new HashMap<String, String>();
+
+  private int size;
+
+  /**
+   * @param path
+   * @param val
+   * @return previous value or null
+   */
+  public synchronized T put(final String path, final T val) {
+    Node<T> n = root;
+    int len = path.length();
+    int start = 0;
+
+    while (start < len) {
+      int end = segmentEnd(path, start);
+
+      if (end > start) {
+        Node<T> kid = n.getChild(path, start, end);
+
+        if (kid == null) {
+          kid = n.addChild(intern(path.substring(start, end)));
+        }
+
+        n = kid;
+      }
+
+      start = end + 1;
+    }
+
+    T prev = n.value;
+    n.value = val;
+
+    if ((prev == null) && (val != null)) {
+      size++;
+    } else if ((prev != null) && (val == null)) {
+      size--;
+    }
+
+    return prev;
+  }
+
+  /**
+   * @param path
+   * @return value or null
+   */
+  public synchronized T get(final String path) {
+    Node<T> n = root;
+    int len = path.length();
+    int start = 0;
+
+    while (start < len) {
+      int end = segmentEnd(path, start);
+
+      if (end > start) {
+        n = n.getChild(path, start, end);
+
+        if (n == null) {
+          return null;
+        }
+      }
+
+      start = end + 1;
+    }
+
+    return n.value;
+  }
+
+  /**
+   * @param path
+   * @return removed value or null
+   */
+  public T remove(final String path) {
+    return put(path, null);
+  }
+
+  /**
+   * @return number of paths with a value
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return number of distinct segment strings held
+   */
+  public synchronized int numSegments() {
+    return segments.size();
+  }
+
+  /**
+   */
+  public synchronized void clear() {
+    root = new Node<T>("");
+    segments.clear();
+    size = 0;
+  }
+
+  private static int segmentEnd(final String path, final int start) {
+    int end = path.indexOf('/', start);
+
+    if (end < 0) {
+      return path.length();
+    }
+
+    return end;
+  }
+
+  private String intern(final String seg) {
+    String s = segments.get(seg);
+
+    if (s == null) {
+      /* Copy - a substring may share the whole path's characters */
+      s = new String(seg);
+      segments.put(s, s);
+    }
+
+    return s;
+  }
+}
@@ -0,0 +1,634 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwAlarm;
+import org.bedework.calfacade.BwAttendee;
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCategory;
+import org.bedework.calfacade.BwContact;
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwFilterDef;
+import org.bedework.calfacade.BwLocation;
+import org.bedework.calfacade.BwPrincipal;
+import org.bedework.calfacade.BwSystem;
+import org.bedework.calfacade.BwUser;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.svc.BwAdminGroup;
+import org.bedework.calfacade.svc.BwAuthUser;
+import org.bedework.calfacade.svc.BwCalSuite;
+import org.bedework.calfacade.svc.EventInfo;
+import org.bedework.calfacade.svc.prefs.BwPreferences;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Wraps a RestoreIntf so that all the writes are done on a writer thread
+ * while the parser carries on with the next entities.
+ *
+ * <p>Writes are queued in order on a bounded queue. When it is full the
+ * parser waits. Reads are answered from the restore caches if possible,
+ * otherwise we wait for the writer to catch up and hand the read to the
+ * wrapped object. Ending a transaction also waits, so each section is
+ * written when its end tag is parsed.
+ *
+ * <p>A failed write is reported by the next call from the parser. Failed
+ * events are logged and counted as they are when restored directly.
+ *
+ * @version 1.0
+ */
+public class PipelinedRestore implements RestoreIntf {
+  /** Default number of writes queued */
+  public static final int defaultQueueSize = 1000;
+
+  private RestoreIntf intf;
+
+  private RestoreGlobals globals;
+
+  private BlockingQueue<Op> queue;
+
+  private Writer writer;
+
+  /* Queued but not yet done - guarded by pendingLock */
+  private int pending;
+
+  private final Object pendingLock = new Object();
+
+  private volatile Throwable failure;
+
+  private long written;
+
+  private long parserWaits;
+
+  private transient Logger log;
+
+  /* A write for the writer thread */
+  private static abstract class Op {
+    abstract void run() throws Throwable;
+  }
+
+  /* Queued to stop the writer */
+  private static final Op endMarker = new Op() {
+    @Override
+    void run() {
+    }
+  };
+
+  private class Writer extends Thread {
+    Writer() {
+      super("RestoreWriter");
+
+      /* Don't hold up the vm if the parse is abandoned */
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          Op op = queue.take();
+
+          if (op == endMarker) {
+            break;
+          }
+
+          try {
+            if (failure == null) {
+              op.run();
+            }
+          } catch (Throwable t) {
+            failure = t;
+          } finally {
+            done();
+          }
+        }
+      } catch (InterruptedException ie) {
+        if (failure == null) {
+          failure = ie;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param intf - does the work
+   * @param queueSize - number of writes we let the parser get ahead by
+   */
+  public PipelinedRestore(final RestoreIntf intf,
+                          final int queueSize) {
+    this.intf = intf;
+    queue = new ArrayBlockingQueue<Op>(queueSize);
+  }
+
+  @Override
+  public void init(final RestoreGlobals globals) throws Throwable {
+    this.globals = globals;
+    intf.init(globals);
+  }
+
+  @Override
+  public RestoreIntf newInstance() throws Throwable {
+    return intf.newInstance();
+  }
+
+  @Override
+  public HibSession getSession() throws CalFacadeException {
+    try {
+      drain();
+    } catch (CalFacadeException cfe) {
+      throw cfe;
+    } catch (Throwable t) {
+      throw new CalFacadeException(t);
+    }
+
+    return intf.getSession();
+  }
+
+  @Override
+  public void open() throws Throwable {
+    intf.open();
+
+    writer = new Writer();
+    writer.start();
+  }
+
+  @Override
+  public void startTransaction() throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.startTransaction();
+      }
+    });
+  }
+
+  @Override
+  public void endTransactionNow() throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.endTransactionNow();
+      }
+    });
+
+    drain();
+  }
+
+  @Override
+  public void endTransaction() throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.endTransaction();
+      }
+    });
+  }
+
+  @Override
+  public void close() throws Throwable {
+    try {
+      if (writer != null) {
+        drain();
+
+        queue.put(endMarker);
+        writer.join();
+        writer = null;
+
+        info("Writer did " + written + " writes. Parser waited " +
+             parserWaits + " times");
+      }
+    } finally {
+      intf.close();
+    }
+  }
+
+  @Override
+  public void restoreSyspars(final BwSystem o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreSyspars(o);
+      }
+    });
+  }
+
+  @Override
+  public void updateSyspars(final BwSystem o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.updateSyspars(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreUser(final BwUser o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreUser(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreAttendee(final BwAttendee o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreAttendee(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreAdminGroup(final BwAdminGroup o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreAdminGroup(o);
+      }
+    });
+  }
+
+  @Override
+  public void updateAdminGroup(final BwAdminGroup o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.updateAdminGroup(o);
+      }
+    });
+  }
+
+  @Override
+  public void addAdminGroupMember(final BwAdminGroup o,
+                                  final BwPrincipal pr) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.addAdminGroupMember(o, pr);
+      }
+    });
+  }
+
+  @Override
+  public BwAdminGroup getAdminGroup(final String name) throws Throwable {
+    drain();
+
+    return intf.getAdminGroup(name);
+  }
+
+  @Override
+  public void restoreAuthUser(final BwAuthUser o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreAuthUser(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreEvent(final EventInfo ei) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        EventWorkers.restore(globals, intf, ei);
+      }
+    });
+  }
+
+  @Override
+  public BwEvent getEvent(final BwUser user,
+                          final String colPath,
+                          final String recurrenceId,
+                          final String uid) throws Throwable {
+    drain();
+
+    return intf.getEvent(user, colPath, recurrenceId, uid);
+  }
+
+  @Override
+  public boolean eventNameExists(final BwCalendar cal,
+                                 final String name) throws Throwable {
+    drain();
+
+    return intf.eventNameExists(cal, name);
+  }
+
+  @Override
+  public void update(final BwEvent o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.update(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreCategory(final BwCategory o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreCategory(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreCalSuite(final BwCalSuite o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreCalSuite(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreLocation(final BwLocation o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreLocation(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreContact(final BwContact o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreContact(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreFilter(final BwFilterDef o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreFilter(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreUserPrefs(final BwPreferences o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreUserPrefs(o);
+      }
+    });
+  }
+
+  @Override
+  public void restoreAlarm(final BwAlarm o) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.restoreAlarm(o);
+      }
+    });
+  }
+
+  @Override
+  public void update(final BwUser user) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.update(user);
+      }
+    });
+  }
+
+  @Override
+  public BwCalendar getCalendar(final String path) throws Throwable {
+    BwCalendar cal = globals.calendarsTbl.get(path);
+    if (cal != null) {
+      return cal;
+    }
+
+    drain();
+
+    return intf.getCalendar(path);
+  }
+
+  @Override
+  public BwCategory getCategory(final OwnerUidKey key) throws Throwable {
+    // We don't need the owner - uid is unique
+    return getCategory(key.getUid());
+  }
+
+  @Override
+  public BwCategory getCategory(final String uid) throws Throwable {
+    BwCategory ent = globals.categoryCache.lookup(uid);
+    if (ent != null) {
+      return ent;
+    }
+
+    drain();
+
+    return intf.getCategory(uid);
+  }
+
+  /* The uid remap tables are only written in the locations and contacts
+   * sections. Those end with a drain so they are complete before anything
+   * looks in them.
+   */
+
+  @Override
+  public BwContact getContact(final OwnerUidKey key) throws Throwable {
+    String uid = globals.contactsUidTbl.get(key);
+
+    if (uid == null) {
+      // Didn't remap this one
+      uid = key.getUid();
+    }
+
+    return getContact(uid);
+  }
+
+  @Override
+  public BwContact getContact(final String uid) throws Throwable {
+    BwContact ent = globals.contactCache.lookup(uid);
+    if (ent != null) {
+      return ent;
+    }
+
+    drain();
+
+    return intf.getContact(uid);
+  }
+
+  @Override
+  public BwLocation getLocation(final OwnerUidKey key) throws Throwable {
+    String uid = globals.locationsUidTbl.get(key);
+
+    if (uid == null) {
+      // Didn't remap this one
+      uid = key.getUid();
+    }
+
+    return getLocation(uid);
+  }
+
+  @Override
+  public BwLocation getLocation(final String uid) throws Throwable {
+    BwLocation ent = globals.locationCache.lookup(uid);
+    if (ent != null) {
+      return ent;
+    }
+
+    drain();
+
+    return intf.getLocation(uid);
+  }
+
+  @Override
+  public BwUser getUser(final String account) throws Throwable {
+    drain();
+
+    return intf.getUser(account);
+  }
+
+  @Override
+  public void saveRootCalendar(final BwCalendar val) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.saveRootCalendar(val);
+      }
+    });
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.addCalendar(val);
+      }
+    });
+  }
+
+  @Override
+  public String getUserHome(final BwUser user) throws Throwable {
+    drain();
+
+    return intf.getUserHome(user);
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val,
+                          final String parentPath) throws Throwable {
+    queue(new Op() {
+      @Override
+      void run() throws Throwable {
+        intf.addCalendar(val, parentPath);
+      }
+    });
+  }
+
+  /* ====================================================================
+   *                       Private methods
+   * ==================================================================== */
+
+  private void queue(final Op op) throws Throwable {
+    checkFailure();
+
+    if (writer == null) {
+      // Not opened - just do it
+      op.run();
+      return;
+    }
+
+    synchronized (pendingLock) {
+      pending++;
+    }
+
+    if (!queue.offer(op)) {
+      parserWaits++;
+
+      while (!queue.offer(op, 1, TimeUnit.SECONDS)) {
+        if (!writer.isAlive()) {
+          throw new Exception("Restore writer has stopped");
+        }
+      }
+    }
+  }
+
+  private void done() {
+    synchronized (pendingLock) {
+      pending--;
+      written++;
+
+      if (pending == 0) {
+        pendingLock.notifyAll();
+      }
+    }
+  }
+
+  /* Wait till everything queued is written */
+  private void drain() throws Throwable {
+    if (writer != null) {
+      synchronized (pendingLock) {
+        while (pending > 0) {
+          if (!writer.isAlive()) {
+            throw new Exception("Restore writer has stopped");
+          }
+
+          pendingLock.wait(1000);
+        }
+      }
+    }
+
+    checkFailure();
+  }
+
+  private void checkFailure() throws Throwable {
+    Throwable t = failure;
+
+    if (t != null) {
+      throw new Exception("Restore write failed", t);
+    }
+  }
+
+  private Logger getLog() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void info(final String msg) {
+    getLog().info(msg);
+  }
+}
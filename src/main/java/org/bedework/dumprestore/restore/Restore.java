@@ -82,16 +82,25 @@
  */
 package org.bedework.dumprestore.restore;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
 import org.apache.commons.digester.Digester;
-import org.apache.commons.digester.RegexMatcher;
-import org.apache.commons.digester.RegexRules;
-import org.apache.commons.digester.SimpleRegexMatcher;
 import org.apache.log4j.Logger;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwSystem;
@@ -103,6 +112,7 @@ import org.bedework.calfacade.svc.BwAuthUser;
 import org.bedework.calfacade.svc.UserAuth;
 import org.bedework.calfacade.svc.prefs.BwAuthUserPrefs;
 import org.bedework.dumprestore.Defs;
+import org.bedework.dumprestore.DumpCompression;
 import org.bedework.dumprestore.ExternalSubInfo;
 import org.bedework.dumprestore.restore.rules.RestoreRuleSet;
 import org.hibernate.SessionFactory;
@@ -142,6 +152,40 @@ public class Restore implements Defs {
 
 	  private String rootId;
 
+	  /* Runtime arg -f Where we restore from - a file or a url. The bundled
+	   * initial data if not set.
+	   */
+	  private String filename;
+
+	  /* Runtime arg -stax Parse with StaxRestore rather than the digester */
+	  private boolean staxParser;
+
+	  /* Runtime arg -pipeline Write to the db on a separate thread */
+	  private boolean pipeline;
+
+	  /* Runtime arg -checkpoint Where we record progress */
+	  private String checkpointFile;
+
+	  /* Runtime arg -checkpointinterval Writes between checkpoints */
+	  private int checkpointInterval = CheckpointRestore.defaultInterval;
+
+	  /* Runtime arg -resume Skip what the checkpoint says is done */
+	  private boolean resume;
+
+	  /* Runtime arg -validate Check the dump without writing to the db */
+	  private boolean validate;
+
+	  /* Runtime arg -validateschema Also check the dump against bedework.xsd */
+	  private boolean validateSchema;
+
+	  private ValidateRestore validator;
+
+	  /* Size of the buffer for reading the dump */
+	  private static final int inputBufferSize = 1024 * 1024;
+
+	  /* Schema for -validateschema */
+	  private static final String schemaResource = "/bedework.xsd";
+
 	  private SessionFactory sessionFactory;
 
 	  /** ===================================================================
@@ -169,16 +213,176 @@ public class Restore implements Defs {
 	   *  =================================================================== */
 
 	  /**
-	   * @param val - filename to restore from
+	   * @param val - filename or url to restore from. Null for the bundled
+	   *              initial data
+	   */
+	  public void setFilename(final String val) {
+	    if ((val == null) || (val.length() == 0)) {
+	      filename = null;
+	    } else {
+	      filename = val;
+	    }
+	  }
+
+	  /**
+	   * @param val - true to parse with a StAX parser rather than the digester
+	   */
+	  public void setStaxParser(final boolean val) {
+	    staxParser = val;
+	  }
+
+	  /**
+	   * @param val - number of entities restored in one transaction. 0 for a
+	   *              transaction per entity.
+	   */
+	  public void setBatchSize(final int val) {
+	    globals.batchSize = val;
+	  }
+
+	  /**
+	   * @param val - comma separated section=size list overriding the batch
+	   *              size for those sections, e.g. "users=500,events=50"
+	   */
+	  public void setSectionBatchSizes(final String val) {
+	    globals.setSectionBatchSizes(val);
+	  }
+
+	  /**
+	   * @param val - comma separated list of sections restored with plain
+	   *              inserts through a stateless session. Only users,
+	   *              categories, locations and contacts may be listed.
 	   */
-	  public void setFilename(final String val) {}
+	  public void setStatelessSections(final String val) {
+	    globals.setStatelessSections(val);
+	  }
+
+	  /**
+	   * @param val - maximum number of principals held in memory
+	   */
+	  public void setPrincipalCacheSize(final int val) {
+	    globals.principalCache.setMaxSize(val);
+	  }
+
+	  /**
+	   * @param val - number of threads restoring events. 1 to restore them
+	   *              as we parse.
+	   */
+	  public void setEventThreads(final int val) {
+	    globals.eventThreads = val;
+	  }
+
+	  /**
+	   * @param val - true to write to the database on a separate thread while
+	   *              we parse
+	   */
+	  public void setPipeline(final boolean val) {
+	    pipeline = val;
+	  }
+
+	  /**
+	   * @param val - file recording progress so an interrupted restore can be
+	   *              resumed. Null for no checkpoints.
+	   */
+	  public void setCheckpoint(final String val) {
+	    if ((val == null) || (val.length() == 0)) {
+	      checkpointFile = null;
+	    } else {
+	      checkpointFile = val;
+	    }
+	  }
+
+	  /**
+	   * @param val - number of entities written between checkpoints
+	   */
+	  public void setCheckpointInterval(final int val) {
+	    checkpointInterval = val;
+	  }
+
+	  /**
+	   * @param val - true to resume from the checkpoint
+	   */
+	  public void setResume(final boolean val) {
+	    resume = val;
+	  }
+
+	  /**
+	   * @param val - number of entries in a large table before it is moved off
+	   *              the heap. 0 to keep them on the heap.
+	   */
+	  public void setTableSpill(final int val) {
+	    globals.tableStores.spillThreshold = val;
+	  }
+
+	  /**
+	   * @param val - number of entries in a large table before it is moved to a
+	   *              file. 0 to keep them in memory.
+	   */
+	  public void setTableMapped(final int val) {
+	    globals.tableStores.mappedThreshold = val;
+	  }
+
+	  /**
+	   * @param val - directory for table files. Null for the temp directory.
+	   */
+	  public void setTableDir(final String val) {
+	    if ((val == null) || (val.length() == 0)) {
+	      globals.tableStores.dir = null;
+	    } else {
+	      globals.tableStores.dir = new File(val);
+	    }
+	  }
+
+	  /**
+	   * @param val - true to check the dump without writing to the database
+	   */
+	  public void setValidate(final boolean val) {
+	    validate = val;
+	  }
+
+	  /**
+	   * @param val - true to also check the dump against the schema. Implies
+	   *              validate.
+	   */
+	  public void setValidateSchema(final boolean val) {
+	    validateSchema = val;
+
+	    if (val) {
+	      validate = true;
+	    }
+	  }
 
 	  /**
 	   * @throws Throwable
 	   */
 	  public void open() throws Throwable {
+	    if ((globals.rintf == null) && validate) {
+	      /* Nothing to wait for so no workers, pipeline or checkpoints */
+	      globals.eventThreads = 1;
+
+	      validator = new ValidateRestore();
+	      globals.rintf = validator;
+	      globals.rintf.init(globals);
+	      globals.rintf.open();
+	    }
+
 	    if (globals.rintf == null) {
-	      globals.rintf = new HibRestore(sessionFactory);
+	      if (pipeline) {
+	        globals.rintf = new PipelinedRestore(new HibRestore(sessionFactory),
+	                                             PipelinedRestore.defaultQueueSize);
+	      } else {
+	        globals.rintf = new HibRestore(sessionFactory);
+	      }
+
+	      if (checkpointFile != null) {
+	        globals.checkpointer = new CheckpointRestore(globals.rintf,
+	                                                     new File(checkpointFile),
+	                                                     checkpointInterval,
+	                                                     resume);
+	        globals.rintf = globals.checkpointer;
+	      } else if (resume) {
+	        throw new Exception("Resume requires a checkpoint file");
+	      }
+
 	      globals.rintf.init(globals);
 	      globals.rintf.open();
 	    }
@@ -192,6 +396,8 @@ public class Restore implements Defs {
 	      globals.rintf.close();
 	    }
 
+	    globals.tableStores.closeAll();
+
 	    if (newSystem) {
 	      return;
 	    }
@@ -207,19 +413,77 @@ public class Restore implements Defs {
 	      return;
 	    }
 
-	    globals.digester = new Digester();
+	    InputStream in = openInput();
 
-	    RegexMatcher m = new SimpleRegexMatcher();
-	    globals.digester.setRules(new RegexRules(m));
+	    try {
+	      if (staxParser) {
+	        if (validateSchema) {
+	          warn("Schema validation needs the digester - not done");
+	        }
+
+	        new StaxRestore(globals).parse(in);
+	        return;
+	      }
+
+	      /* RestoreRuleSet sets the rules */
+	      if (validateSchema) {
+	        globals.digester = new Digester(getValidatingParser());
+	        globals.digester.setErrorHandler(validator.getSchemaErrors());
+	      } else {
+	        globals.digester = new Digester();
+	      }
 
-	    globals.digester.addRuleSet(new RestoreRuleSet(globals));
-	    
-	    InputStream initBedeworkStream = IOUtil.getStreamFromJar(
-	    		BedeworkManagerConstants.BUNDLE_IDENTIFIER,
-	    		BedeworkManagerConstants.FILE_PATH_INIT_BEDEWORK
-	    		);
-	    
-	    globals.digester.parse(new InputStreamReader(initBedeworkStream, "UTF-8"));
+	      globals.digester.addRuleSet(new RestoreRuleSet(globals));
+
+	      globals.digester.parse(new InputStreamReader(in, "UTF-8"));
+	    } finally {
+	      in.close();
+	    }
+	  }
+
+	  /* A parser which checks the dump against the bundled schema as we go.
+	   */
+	  private SAXParser getValidatingParser() throws Throwable {
+	    URL xsd = getClass().getResource(schemaResource);
+
+	    if (xsd == null) {
+	      throw new Exception("Unable to find " + schemaResource);
+	    }
+
+	    Schema schema = SchemaFactory.newInstance(
+	            XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(xsd);
+
+	    SAXParserFactory factory = SAXParserFactory.newInstance();
+
+	    factory.setNamespaceAware(true);
+	    factory.setSchema(schema);
+
+	    return factory.newSAXParser();
+	  }
+
+	  /* Open the dump we restore from. Compressed dumps are decompressed as
+	   * we read.
+	   */
+	  private InputStream openInput() throws Throwable {
+	    InputStream in;
+
+	    if (filename == null) {
+	      info("Restoring from bundled " +
+	           BedeworkManagerConstants.FILE_PATH_INIT_BEDEWORK);
+	      in = IOUtil.getStreamFromJar(
+	              BedeworkManagerConstants.BUNDLE_IDENTIFIER,
+	              BedeworkManagerConstants.FILE_PATH_INIT_BEDEWORK);
+	    } else if (filename.indexOf("://") > 0 || filename.startsWith("file:")) {
+	      info("Restoring from url " + filename);
+	      in = new URL(filename).openStream();
+	    } else {
+	      info("Restoring from file " + filename);
+	      FileChannel fc = new FileInputStream(filename).getChannel();
+	      in = Channels.newInputStream(fc);
+	    }
+
+	    return DumpCompression.decompress(new BufferedInputStream(in,
+	                                                              inputBufferSize));
 	  }
 
 	  /**
@@ -373,6 +637,10 @@ public class Restore implements Defs {
 	   */
 	  public void stats(final List<String> infoLines) {
 	    globals.stats(infoLines);
+
+	    if (validator != null) {
+	      validator.stats(infoLines);
+	    }
 	  }
 
 	  boolean processArgs(final Args args) throws Throwable {
@@ -392,6 +660,38 @@ public class Restore implements Defs {
 	      } else if (args.ifMatch("-appname", 1)) {
 	        args.next();
 	        // done earlier
+	      } else if (args.ifMatch("-stax")) {
+	        staxParser = true;
+	      } else if (args.ifMatch("-batchsize", 1)) {
+	        setBatchSize(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-sectionbatch", 1)) {
+	        setSectionBatchSizes(args.next());
+	      } else if (args.ifMatch("-stateless", 1)) {
+	        setStatelessSections(args.next());
+	      } else if (args.ifMatch("-principalcachesize", 1)) {
+	        setPrincipalCacheSize(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-eventthreads", 1)) {
+	        setEventThreads(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-pipeline")) {
+	        pipeline = true;
+	      } else if (args.ifMatch("-checkpoint", 1)) {
+	        setCheckpoint(args.next());
+	      } else if (args.ifMatch("-checkpointinterval", 1)) {
+	        setCheckpointInterval(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-resume")) {
+	        resume = true;
+	      } else if (args.ifMatch("-tablespill", 1)) {
+	        setTableSpill(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-tablemapped", 1)) {
+	        setTableMapped(Integer.parseInt(args.next()));
+	      } else if (args.ifMatch("-tabledir", 1)) {
+	        setTableDir(args.next());
+	      } else if (args.ifMatch("-validate")) {
+	        setValidate(true);
+	      } else if (args.ifMatch("-validateschema")) {
+	        setValidateSchema(true);
+	      } else if (args.ifMatch("-f", 1)) {
+	        setFilename(args.next());
 	      } else if (args.ifMatch("-newSystem")) {
 	        // done earlier
 	      } else if (newSystem && (args.ifMatch("-rootid", 1))) {
@@ -432,6 +732,26 @@ public class Restore implements Defs {
 	    System.out.println("Usage:");
 	    System.out.println("args   -appname name       required: provides name of this application");
 	    System.out.println("       -f restorefilename  name of restore data");
+	    System.out.println("       -stax               parse with a StAX parser");
+	    System.out.println("       -batchsize n        entities restored per transaction");
+	    System.out.println("       -sectionbatch section=n[,section=n...]");
+	    System.out.println("           batch size for named sections");
+	    System.out.println("       -stateless section[,section...]");
+	    System.out.println("           insert users, categories, locations or contacts");
+	    System.out.println("           through a stateless session");
+	    System.out.println("       -principalcachesize n");
+	    System.out.println("           number of principals held in memory");
+	    System.out.println("       -eventthreads n     threads restoring events");
+	    System.out.println("       -pipeline           write to the db on a separate thread");
+	    System.out.println("       -checkpoint file    record progress in file");
+	    System.out.println("       -checkpointinterval n");
+	    System.out.println("           entities written between checkpoints");
+	    System.out.println("       -resume             resume from the checkpoint");
+	    System.out.println("       -tablespill n       entries before a large table leaves the heap");
+	    System.out.println("       -tablemapped n      entries before a large table goes to a file");
+	    System.out.println("       -tabledir dir       where those files go");
+	    System.out.println("       -validate           check the dump without writing to the db");
+	    System.out.println("       -validateschema     validate and check against bedework.xsd");
 	    System.out.println("       -[n]debug           debugging switch");
 	    System.out.println("       -initSyspars        Override system settings with configuration");
 	    System.out.println("       -newSystem -rootid <id>");
@@ -493,6 +813,10 @@ public class Restore implements Defs {
 	    getLog().error(msg);
 	  }
 
+	  protected void warn(final String msg) {
+	    getLog().warn(msg);
+	  }
+
 	  protected void info(final String msg) {
 	    getLog().info(msg);
 	  }
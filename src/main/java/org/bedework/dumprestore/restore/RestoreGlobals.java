@@ -18,7 +18,6 @@
 */
 package org.bedework.dumprestore.restore;
 
-import org.bedework.calcore.hibernate.CalintfHelperHib;
 import org.bedework.calfacade.BwAttendee;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCategory;
@@ -36,6 +35,7 @@ import org.bedework.calfacade.configs.SystemRoots;
 import org.bedework.calfacade.env.CalOptionsFactory;
 import org.bedework.calfacade.exc.CalFacadeException;
 import org.bedework.calfacade.svc.BwAdminGroup;
+import org.bedework.calfacade.svc.EventInfo;
 import org.bedework.dumprestore.Counters;
 import org.bedework.dumprestore.ExternalSubInfo;
 
@@ -45,8 +45,12 @@ import edu.rpi.cmt.timezones.Timezones;
 import org.apache.commons.digester.Digester;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -115,11 +119,43 @@ public class RestoreGlobals extends Counters {
    */
   public boolean convertScheduleDefault;
 
-  /** Try to batch up entities */
-  public int hibBatchSize = 0;
+  /** Try to batch up entities. Set by the parser for each section and read
+   * by the writer and event worker threads.
+   */
+  public volatile int hibBatchSize = 0;
+
+  /** Number of entities restored in a single transaction for the batched
+   * sections. 0 for a transaction per entity.
+   */
+  public int batchSize = 0;
+
+  /** Batch sizes for named sections. These override batchSize.
+   */
+  public Map<String, Integer> sectionBatchSizes = new HashMap<String, Integer>();
+
+  /** Batch size for collections if nothing else is set */
+  public static final int defaultCalendarBatchSize = 100;
+
+  /* Sections where each entity is a simple save and can be batched. */
+  private static final Set<String> batchedSections = new HashSet<String>(
+      Arrays.asList("users", "calendars", "categories", "locations",
+                    "contacts", "authusers", "filters", "user-preferences",
+                    "events", "event-annotations"));
 
-  /** Number in batch */
-  public int curHibBatchSize = 0;
+  /** Number of batches committed */
+  public long batchCommits;
+
+  /** Sections restored with plain inserts through a stateless session */
+  public Set<String> statelessSections = new TreeSet<String>();
+
+  /* Sections of entities with no collections - the only ones a stateless
+   * session can insert.
+   */
+  private static final Set<String> statelessCapable = new HashSet<String>(
+      Arrays.asList("users", "categories", "locations", "contacts"));
+
+  /** True while restoring one of the statelessSections */
+  public volatile boolean stateless;
 
   /** This is not the way to use the digester. We could possibly build the xml
    * rules directly from the hibernate schema or from java annotations.
@@ -199,14 +235,14 @@ public class RestoreGlobals extends Counters {
     /** Add a warning
      * @param msg
      */
-    public void warningMessage(final String msg) {
+    public synchronized void warningMessage(final String msg) {
       add(new RestoreMessage(" WARN", msg));
     }
 
     /** Add an error
      * @param msg
      */
-    public void errorMessage(final String msg) {
+    public synchronized void errorMessage(final String msg) {
       add(new RestoreMessage("ERROR", msg));
     }
   }
@@ -218,22 +254,9 @@ public class RestoreGlobals extends Counters {
   /** Only Users mapping */
   public OnlyUsersMap onlyUsersMap = new OnlyUsersMap();
 
-  /**
+  /** Event ids by key id. put(keyid, eventid) adds to the list for the key.
    */
-  public static class EventKeyMap extends HashMap<Integer, ArrayList<Integer>> {
-    /**
-     * @param keyid
-     * @param eventid
-     */
-    public void put(final int keyid, final int eventid) {
-      ArrayList<Integer> al = get(keyid);
-      if (al == null) {
-        al = new ArrayList<Integer>();
-        put(keyid, al);
-      }
-
-      al.add(eventid);
-    }
+  public static class EventKeyMap extends IntMultiMap {
   }
 
   /** Save ids of alias events and their targets
@@ -249,7 +272,7 @@ public class RestoreGlobals extends Counters {
 
   /**
    */
-  public class UserMap extends HashMap<Integer, BwUser> {
+  public class UserMap extends IntMap<BwUser> {
     HashMap<String, BwUser> nameMap = new HashMap<String, BwUser>();
 
     /**
@@ -300,9 +323,9 @@ public class RestoreGlobals extends Counters {
     }
   }
 
-  /**
+  /** Restored collections by path
    */
-  public static class CalendarMap extends HashMap<String, BwCalendar> {
+  public static class CalendarMap extends PathMap<BwCalendar> {
     /**
      * @param val
      */
@@ -334,7 +357,11 @@ public class RestoreGlobals extends Counters {
 
   /**
    */
-  public static class CategoryMap extends HashMap<Integer, OwnerUidKey> {
+  public static class CategoryMap extends IntSpillMap<OwnerUidKey> {
+    CategoryMap(final TableStores stores) {
+      super(stores, "categories", Codec.ownerUidKey);
+    }
+
     /**
      * @param val
      */
@@ -345,7 +372,7 @@ public class RestoreGlobals extends Counters {
 
   /** PRE3.3 - here we had the location db id in the event
    */
-  public static class LocationMap extends HashMap<Integer, String> {
+  public static class LocationMap extends IntMap<String> {
     /**
      * @param val
      */
@@ -357,7 +384,11 @@ public class RestoreGlobals extends Counters {
   /** PRE3.5 - here we had the owner and location uid in the event.
    * If we have to remap a location we put an entry in here.
    */
-  public static class LocationUidMap extends HashMap<OwnerUidKey, String> {
+  public static class LocationUidMap extends SpillMap<OwnerUidKey, String> {
+    LocationUidMap(final TableStores stores) {
+      super(stores, "locationsUid", Codec.ownerUidKey, Codec.string);
+    }
+
     /**
      * @param val
      */
@@ -368,7 +399,7 @@ public class RestoreGlobals extends Counters {
 
   /** PRE3.3
    */
-  public static class ContactMap extends HashMap<Integer, String> {
+  public static class ContactMap extends IntMap<String> {
     /**
      * @param val
      */
@@ -379,7 +410,11 @@ public class RestoreGlobals extends Counters {
 
   /** PRE3.5
    */
-  public static class ContactUidMap extends HashMap<OwnerUidKey, String> {
+  public static class ContactUidMap extends SpillMap<OwnerUidKey, String> {
+    ContactUidMap(final TableStores stores) {
+      super(stores, "contactsUid", Codec.ownerUidKey, Codec.string);
+    }
+
     /**
      * @param val
      */
@@ -390,7 +425,11 @@ public class RestoreGlobals extends Counters {
 
   /**
    */
-  public static class AttendeeMap extends HashMap<Integer, BwAttendee> {
+  public static class AttendeeMap extends IntSpillMap<BwAttendee> {
+    AttendeeMap(final TableStores stores) {
+      super(stores, "attendees", new Codec.Serialized<BwAttendee>());
+    }
+
     /**
      * @param val
      */
@@ -411,7 +450,7 @@ public class RestoreGlobals extends Counters {
 
   /**
    */
-  public static class OrganizerMap extends HashMap<Integer, OrganizerEntity> {
+  public static class OrganizerMap extends IntMap<OrganizerEntity> {
     /**
      * @param val
      */
@@ -420,6 +459,51 @@ public class RestoreGlobals extends Counters {
     }
   }
 
+  /** Restored entities by uid. Saves a query for every event that refers
+   * to one of them.
+   *
+   * @param <T>
+   */
+  public static class UidCache<T> extends HashMap<String, T> {
+    /** */
+    public long hits;
+
+    /** */
+    public long misses;
+
+    /**
+     * @param uid
+     * @return entity or null - counts the hit or miss
+     */
+    public synchronized T lookup(final String uid) {
+      T ent = get(uid);
+
+      if (ent == null) {
+        misses++;
+      } else {
+        hits++;
+      }
+
+      return ent;
+    }
+
+    @Override
+    public synchronized T get(final Object uid) {
+      return super.get(uid);
+    }
+
+    @Override
+    public synchronized T put(final String uid, final T ent) {
+      return super.put(uid, ent);
+    }
+
+    /** Drop everything - entities we cached may not have been committed
+     */
+    public synchronized void invalidateAll() {
+      clear();
+    }
+  }
+
   /** */
   public SubscriptionsMap subscriptionsTbl = new SubscriptionsMap();
 
@@ -437,32 +521,63 @@ public class RestoreGlobals extends Counters {
   public HashMap<String, ArrayList<PrincipalHref>> adminGroupMembers =
     new HashMap<String, ArrayList<PrincipalHref>>();
 
+  /** Where the biggest tables keep their entries */
+  public TableStores tableStores = new TableStores();
+
   /** */
-  public CategoryMap categoriesTbl = new CategoryMap();
+  public CategoryMap categoriesTbl = new CategoryMap(tableStores);
   /** */
   public LocationMap locationsTbl = new LocationMap();
   /** */
-  public LocationUidMap locationsUidTbl = new LocationUidMap();
+  public LocationUidMap locationsUidTbl = new LocationUidMap(tableStores);
   /** */
   public ContactMap contactsTbl = new ContactMap();
   /** */
-  public ContactUidMap contactsUidTbl = new ContactUidMap();
+  public ContactUidMap contactsUidTbl = new ContactUidMap(tableStores);
   /** */
   public OrganizerMap organizersTbl = new OrganizerMap();
   /** */
-  public AttendeeMap attendeesTbl = new AttendeeMap();
+  public AttendeeMap attendeesTbl = new AttendeeMap(tableStores);
 
   /** */
   public CalendarMap calendarsTbl = new CalendarMap();
 
+  /** Shared copies of hrefs, paths and tzids */
+  public StringPool stringPool = new StringPool(StringPool.defaultMaxSize);
+
+  /** */
+  public UidCache<BwCategory> categoryCache = new UidCache<BwCategory>();
+
+  /** */
+  public UidCache<BwLocation> locationCache = new UidCache<BwLocation>();
+
+  /** */
+  public UidCache<BwContact> contactCache = new UidCache<BwContact>();
+
   //private BwIndexer publicIndexer;
   //private IndexerMap userIndexers;
 
   /** */
   public RestoreIntf rintf;
 
+  /** Number of threads restoring events. 1 to restore them as we parse.
+   */
+  public int eventThreads = 1;
+
+  /** Number of events queued for each event thread */
+  public int eventQueueSize = 100;
+
+  /** Set while the events section is restored by worker threads */
+  public EventWorkers eventWorkers;
+
+  /** Aliases met while the event workers were running - restored at the
+   * end of the section */
+  public List<EventInfo> deferredAliases = new ArrayList<EventInfo>();
+
+  /** Non-null when we are checkpointing the restore */
+  public CheckpointRestore checkpointer;
+
   RestoreGlobals() throws Throwable {
-    calCallback = new CalintfHelperCallback(this);
   }
 
   private String defaultTzid;
@@ -511,14 +626,6 @@ public class RestoreGlobals extends Counters {
     return publicUser;
   }
 
-  /** Who we are pretending to be for the core classes
-   */
-  public BwUser currentUser;
-
-  /**
-   */
-  public CalintfHelperCallback calCallback;
-
   /**
    * @param val
    * @throws Throwable
@@ -604,34 +711,6 @@ public class RestoreGlobals extends Counters {
     }
   }
 
-  private static class CalintfHelperCallback implements CalintfHelperHib.Callback {
-    private RestoreGlobals gbls;
-
-    CalintfHelperCallback(final RestoreGlobals gbls) {
-      this.gbls = gbls;
-    }
-
-    @Override
-    public void rollback() throws CalFacadeException {
-      gbls.rintf.getSession().rollback();
-    }
-
-    @Override
-    public BwSystem getSyspars() throws CalFacadeException {
-      return gbls.syspars;
-    }
-
-    @Override
-    public BwUser getUser() throws CalFacadeException {
-      return gbls.currentUser;
-    }
-
-    @Override
-    public boolean getSuperUser() throws CalFacadeException {
-      return true;
-    }
-  }
-
   /**
    *
    */
@@ -677,12 +756,160 @@ public class RestoreGlobals extends Counters {
 
     info(infoLines, " ");
     info(infoLines, "    Fixed end times: " + fixedNoEndTime);
+    info(infoLines, "  Batches committed: " + batchCommits);
+    info(infoLines, "   Collection cache: " + calendarsTbl.size() +
+         " paths, " + calendarsTbl.numSegments() + " distinct segments");
+    info(infoLines, "    Principal cache: " + principalCache.size() +
+         " entries, " + principalCache.hits + " hits, " +
+         principalCache.misses + " misses, " +
+         principalCache.evictions + " evictions");
+    cacheStats(infoLines, "Category", categoryCache);
+    cacheStats(infoLines, "Location", locationCache);
+    cacheStats(infoLines, " Contact", contactCache);
+    info(infoLines, "        String pool: " + stringPool.size() +
+         " strings, " + stringPool.hits + " hits, " +
+         stringPool.misses + " misses");
+    info(infoLines, " ");
+
+    long tableBytes = 0;
+    tableBytes += tableStats(infoLines, "     Users", usersTbl);
+    tableBytes += tableStats(infoLines, "Categories", categoriesTbl.size(),
+                             categoriesTbl.memorySize(),
+                             categoriesTbl.getKind());
+    tableBytes += tableStats(infoLines, " Locations", locationsTbl);
+    tableBytes += tableStats(infoLines, "  Contacts", contactsTbl);
+    tableBytes += tableStats(infoLines, "Organizers", organizersTbl);
+    tableBytes += tableStats(infoLines, " Attendees", attendeesTbl.size(),
+                             attendeesTbl.memorySize(),
+                             attendeesTbl.getKind());
+    tableBytes += tableStats(infoLines, "  Loc uids", locationsUidTbl.size(),
+                             locationsUidTbl.memorySize(),
+                             locationsUidTbl.getKind());
+    tableBytes += tableStats(infoLines, "  Con uids", contactsUidTbl.size(),
+                             contactsUidTbl.memorySize(),
+                             contactsUidTbl.getKind());
+    info(infoLines, "  Id tables (excluding entries): " +
+         (tableBytes / 1024) + "K");
     info(infoLines, " ");
     info(infoLines, "           warnings: " + warnings);
     info(infoLines, "             errors: " + errors);
     info(infoLines, " ");
   }
 
+  private long tableStats(final List<String> infoLines,
+                          final String name,
+                          final IntMap<?> tbl) {
+    return tableStats(infoLines, name, tbl.size(), tbl.memorySize(), "heap");
+  }
+
+  private long tableStats(final List<String> infoLines,
+                          final String name,
+                          final int size,
+                          final long bytes,
+                          final String kind) {
+    info(infoLines, "   " + name + " table: " + size +
+         " entries, " + (bytes / 1024) + "K " + kind);
+
+    return bytes;
+  }
+
+  private void cacheStats(final List<String> infoLines,
+                          final String name,
+                          final UidCache<?> cache) {
+    info(infoLines, "     " + name + " cache: " + cache.size() +
+         " entries, " + cache.hits + " hits, " + cache.misses + " misses");
+  }
+
+  /** Set batch sizes for named sections.
+   *
+   * @param val - comma separated list of section=size, e.g.
+   *              "users=500,events=50"
+   */
+  public void setSectionBatchSizes(final String val) {
+    sectionBatchSizes.clear();
+
+    if (val == null) {
+      return;
+    }
+
+    for (String s: val.split(",")) {
+      s = s.trim();
+      if (s.length() == 0) {
+        continue;
+      }
+
+      int pos = s.indexOf('=');
+      if (pos < 0) {
+        throw new IllegalArgumentException("Bad section batch size: " + s);
+      }
+
+      sectionBatchSizes.put(sectionKey(s.substring(0, pos)),
+                            Integer.valueOf(s.substring(pos + 1).trim()));
+    }
+  }
+
+  /**
+   * @param section - name as given to the SectionRule
+   * @return number of entities restored in one transaction for the section.
+   *         0 for a transaction per entity.
+   */
+  public int getBatchSize(final String section) {
+    String key = sectionKey(section);
+
+    if (!batchedSections.contains(key)) {
+      return 0;
+    }
+
+    Integer sz = sectionBatchSizes.get(key);
+    if (sz != null) {
+      return sz;
+    }
+
+    if ((batchSize == 0) && key.equals("calendars")) {
+      return defaultCalendarBatchSize;
+    }
+
+    return batchSize;
+  }
+
+  /** Set the sections restored through a stateless session.
+   *
+   * @param val - comma separated list of section names
+   */
+  public void setStatelessSections(final String val) {
+    statelessSections.clear();
+
+    if (val == null) {
+      return;
+    }
+
+    for (String s: val.split(",")) {
+      s = sectionKey(s);
+      if (s.length() == 0) {
+        continue;
+      }
+
+      if (!statelessCapable.contains(s)) {
+        throw new IllegalArgumentException("Section " + s +
+                                           " cannot be restored stateless");
+      }
+
+      statelessSections.add(s);
+    }
+  }
+
+  /**
+   * @param section - name as given to the SectionRule
+   * @return true if we restore the section through a stateless session
+   */
+  public boolean isStateless(final String section) {
+    return statelessSections.contains(sectionKey(section));
+  }
+
+  private static String sectionKey(final String section) {
+    return section.trim().replace(' ', '-');
+  }
+
   /**
    * @param config
    */
@@ -690,10 +917,111 @@ public class RestoreGlobals extends Counters {
     this.config = config;
   }
 
-  private Map<String, BwPrincipal> principalMap = new HashMap<String, BwPrincipal>();
+  /** Default number of principals we hold on to */
+  public static final int defaultPrincipalCacheSize = 10000;
+
+  /** Least recently used principals by href. Entries only go when the
+   * cache is full or they are invalidated.
+   */
+  public static class PrincipalCache extends LinkedHashMap<String, BwPrincipal> {
+    private int maxSize;
+
+    /** */
+    public long hits;
+
+    /** */
+    public long misses;
+
+    /** */
+    public long evictions;
+
+    /**
+     * @param maxSize
+     */
+    public PrincipalCache(final int maxSize) {
+      super(16, 0.75f, true);  // access order
 
-  private long lastFlush = System.currentTimeMillis();
-  private static final long flushInt = 1000 * 30 * 5; // 5 minutes
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * @param val maximum number of entries
+     */
+    public synchronized void setMaxSize(final int val) {
+      maxSize = val;
+
+      /* Drop least recently used till we fit */
+      Iterator<String> it = keySet().iterator();
+      while ((size() > maxSize) && it.hasNext()) {
+        it.next();
+        it.remove();
+        evictions++;
+      }
+    }
+
+    /**
+     * @return maximum number of entries
+     */
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    /**
+     * @param href
+     * @return principal or null - counts the hit or miss
+     */
+    public synchronized BwPrincipal lookup(final String href) {
+      BwPrincipal p = get(href);
+
+      if (p == null) {
+        misses++;
+      } else {
+        hits++;
+      }
+
+      return p;
+    }
+
+    @Override
+    public synchronized BwPrincipal put(final String href,
+                                        final BwPrincipal p) {
+      return super.put(href, p);
+    }
+
+    /**
+     * @param p
+     */
+    public void put(final BwPrincipal p) {
+      put(p.getPrincipalRef(), p);
+    }
+
+    /**
+     * @param href
+     */
+    public synchronized void invalidate(final String href) {
+      remove(href);
+    }
+
+    /**
+     */
+    public synchronized void invalidateAll() {
+      clear();
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, BwPrincipal> eldest) {
+      if (size() <= maxSize) {
+        return false;
+      }
+
+      evictions++;
+      return true;
+    }
+  }
+
+  /** */
+  public PrincipalCache principalCache =
+      new PrincipalCache(defaultPrincipalCacheSize);
 
   private static String principalRoot;
   private static String userPrincipalRoot;
@@ -733,18 +1061,6 @@ public class RestoreGlobals extends Counters {
     return val + "/";
   }
 
-  private BwPrincipal mappedPrincipal(final String val) {
-    long now = System.currentTimeMillis();
-
-    if ((now - lastFlush) > flushInt) {
-      principalMap.clear();
-      lastFlush = now;
-      return null;
-    }
-
-    return principalMap.get(val);
-  }
-
   /**
    * @return principal root
    * @throws Throwable
@@ -868,7 +1184,31 @@ public class RestoreGlobals extends Counters {
    * @throws Throwable
    */
   public BwPrincipal getPrincipal(final String val) throws Throwable {
-    BwPrincipal p = mappedPrincipal(val);
+    return getPrincipal(val, rintf);
+  }
+
+  /**
+   * @param val
+   * @param intf - used to fetch principals we don't have
+   * @return BwPrincipal
+   * @throws Throwable
+   */
+  public BwPrincipal getPrincipal(final String val,
+                                  final RestoreIntf intf) throws Throwable {
+    return getPrincipal(val, intf, principalCache);
+  }
+
+  /**
+   * @param val
+   * @param intf - used to fetch principals we don't have
+   * @param cache - principals fetched by intf
+   * @return BwPrincipal
+   * @throws Throwable
+   */
+  public BwPrincipal getPrincipal(final String val,
+                                  final RestoreIntf intf,
+                                  final PrincipalCache cache) throws Throwable {
+    BwPrincipal p = cache.lookup(val);
 
     if (p != null) {
       return p;
@@ -881,10 +1221,10 @@ public class RestoreGlobals extends Counters {
     }
 
     if (val.startsWith(userPrincipalRoot)) {
-      BwUser u = rintf.getUser(val.substring(userPrincipalRootLen));
+      BwUser u = intf.getUser(val.substring(userPrincipalRootLen));
 
       if (u != null) {
-        principalMap.put(val, u);
+        cache.put(val, u);
       }
 
       return u;
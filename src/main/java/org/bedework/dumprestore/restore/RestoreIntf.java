@@ -19,6 +19,7 @@
 package org.bedework.dumprestore.restore;
 
 import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwAlarm;
 import org.bedework.calfacade.BwAttendee;
 import org.bedework.calfacade.BwCalendar;
 import org.bedework.calfacade.BwCategory;
@@ -50,6 +51,14 @@ public interface RestoreIntf {
    */
   public void init(RestoreGlobals globals) throws Throwable;
 
+  /** Create another initialised instance sharing the globals but with its
+   * own session, for use by a worker thread.
+   *
+   * @return RestoreIntf
+   * @throws Throwable
+   */
+  public RestoreIntf newInstance() throws Throwable;
+
   /**
    * @return Session
    * @throws CalFacadeException
@@ -231,13 +240,12 @@ public interface RestoreIntf {
    */
   public void restoreUserPrefs(BwPreferences o) throws Throwable;
 
-  /* * Restore alarm - not needed - restored as part of event
+  /** Restore alarm - normally not needed - restored as part of event
    *
    * @param o   Object to restore with id set
    * @throws Throwable
-   * /
+   */
   public void restoreAlarm(BwAlarm o) throws Throwable;
-  */
 
   /** Update user.
    *
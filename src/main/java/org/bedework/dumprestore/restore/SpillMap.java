@@ -0,0 +1,252 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** A map which starts on the heap and moves into a ByteStore when it gets
+ * big. TableStores decides when and where.
+ *
+ * <p>Once moved, keys and values are encoded on the way in and decoded on
+ * the way out, so gets return copies. Entries are iterated in no
+ * particular order.
+ *
+ * <p>All methods are synchronized.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class SpillMap<K, V> extends AbstractMap<K, V> {
+  private TableStores stores;
+
+  private String name;
+
+  private Codec<K> keyCodec;
+
+  private Codec<V> valCodec;
+
+  private HashMap<K, V> heap = new HashMap<K, V>();
+
+  /* Non-null once we've moved */
+  private ByteStore store;
+
+  /**
+   * @param stores
+   * @param name - of the table for messages
+   * @param keyCodec
+   * @param valCodec
+   */
+  public SpillMap(final TableStores stores,
+                  final String name,
+                  final Codec<K> keyCodec,
+                  final Codec<V> valCodec) {
+    this.stores = stores;
+    this.name = name;
+    this.keyCodec = keyCodec;
+    this.valCodec = valCodec;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized V get(final Object key) {
+    if (store == null) {
+      return heap.get(key);
+    }
+
+    try {
+      return valCodec.decode(store.get(keyCodec.encode((K)key)));
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public synchronized boolean containsKey(final Object key) {
+    if (store == null) {
+      return heap.containsKey(key);
+    }
+
+    try {
+      return store.containsKey(keyCodec.encode((K)key));
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  @Override
+  public synchronized V put(final K key, final V val) {
+    try {
+      if (store == null) {
+        V prev = heap.put(key, val);
+
+        if (stores.spill(heap.size())) {
+          spill();
+        }
+
+        return prev;
+      }
+
+      byte[] prev = store.put(keyCodec.encode(key), valCodec.encode(val));
+      store = stores.checkStore(name, store);
+
+      return valCodec.decode(prev);
+    } catch (Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    if (store == null) {
+      return heap.size();
+    }
+
+    return store.size();
+  }
+
+  @Override
+  public synchronized void clear() {
+    heap.clear();
+
+    if (store != null) {
+      try {
+        stores.close(store);
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+
+      store = null;
+    }
+  }
+
+  /**
+   * @return where the entries are
+   */
+  public synchronized String getKind() {
+    if (store == null) {
+      return "heap";
+    }
+
+    return store.getKind();
+  }
+
+  /**
+   * @return bytes held by the store - 0 while on the heap
+   */
+  public synchronized long memorySize() {
+    if (store == null) {
+      return 0;
+    }
+
+    return store.memorySize();
+  }
+
+  @Override
+  public synchronized Set<Map.Entry<K, V>> entrySet() {
+    if (store == null) {
+      return heap.entrySet();
+    }
+
+    return new AbstractSet<Map.Entry<K, V>>() {
+      @Override
+      public int size() {
+        return store.size();
+      }
+
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator() {
+        return new StoreIterator(store);
+      }
+    };
+  }
+
+  /* Decodes the entries of a store as we go */
+  private class StoreIterator implements Iterator<Map.Entry<K, V>> {
+    private ByteStore st;
+
+    private int slot = -1;
+
+    private byte[] nextKey;
+
+    StoreIterator(final ByteStore st) {
+      this.st = st;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextKey != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (nextKey == null) {
+        throw new NoSuchElementException();
+      }
+
+      try {
+        Map.Entry<K, V> ent =
+          new AbstractMap.SimpleImmutableEntry<K, V>(
+                keyCodec.decode(nextKey),
+                valCodec.decode(st.value(slot)));
+
+        advance();
+
+        return ent;
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void advance() {
+      nextKey = null;
+
+      while (++slot < st.getSlots()) {
+        nextKey = st.key(slot);
+
+        if (nextKey != null) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void spill() throws Throwable {
+    ByteStore s = stores.newStore(name, heap.size());
+
+    for (Map.Entry<K, V> ent: heap.entrySet()) {
+      s.put(keyCodec.encode(ent.getKey()), valCodec.encode(ent.getValue()));
+    }
+
+    store = s;
+    heap = new HashMap<K, V>();
+  }
+}
@@ -0,0 +1,249 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.bedework.dumprestore.restore.rules.RestoreRuleSet;
+
+import org.apache.commons.digester.Digester;
+import org.apache.commons.digester.Rule;
+import org.xml.sax.Locator;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/** Restore using a StAX pull parser rather than having the digester drive
+ * the rules from SAX events.
+ *
+ * <p>The rules registered by RestoreRuleSet are used unchanged and are
+ * called in the same order with the same arguments as the digester would.
+ * The digester is still used to hold the object stack and the rules but
+ * matching is done only once for each distinct element path. The paths we
+ * have seen form a tree and parsing is a walk up and down that tree.
+ *
+ * @version 1.0
+ */
+public class StaxRestore {
+  private RestoreGlobals globals;
+
+  private StaxDigester digester;
+
+  private AttributesImpl attrs = new AttributesImpl();
+
+  /* One node for each distinct element path */
+  private static class PathNode {
+    PathNode parent;
+
+    String match;
+
+    List<Rule> rules;
+
+    Map<String, PathNode> children;
+
+    /* An element cannot contain itself so one buffer per path is enough */
+    StringBuilder bodyText = new StringBuilder();
+
+    PathNode(final PathNode parent, final String match) {
+      this.parent = parent;
+      this.match = match;
+    }
+  }
+
+  private PathNode root = new PathNode(null, "");
+
+  /* Lets us set the match and locator the rules see */
+  private static class StaxDigester extends Digester {
+    void setMatch(final String val) {
+      match = val;
+    }
+  }
+
+  /* Report positions from the stream reader */
+  private static class StaxLocator implements Locator {
+    private XMLStreamReader rdr;
+
+    StaxLocator(final XMLStreamReader rdr) {
+      this.rdr = rdr;
+    }
+
+    public String getPublicId() {
+      return rdr.getLocation().getPublicId();
+    }
+
+    public String getSystemId() {
+      return rdr.getLocation().getSystemId();
+    }
+
+    public int getLineNumber() {
+      return rdr.getLocation().getLineNumber();
+    }
+
+    public int getColumnNumber() {
+      return rdr.getLocation().getColumnNumber();
+    }
+  }
+
+  /**
+   * @param globals
+   */
+  public StaxRestore(final RestoreGlobals globals) {
+    this.globals = globals;
+
+    digester = new StaxDigester();
+    digester.addRuleSet(new RestoreRuleSet(globals));
+
+    globals.digester = digester;
+  }
+
+  /** Parse the dump and restore it.
+   *
+   * @param in
+   * @throws Throwable
+   */
+  public void parse(final InputStream in) throws Throwable {
+    XMLInputFactory fact = XMLInputFactory.newInstance();
+
+    fact.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    fact.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                     Boolean.FALSE);
+
+    XMLStreamReader rdr = fact.createXMLStreamReader(in, "UTF-8");
+
+    digester.setDocumentLocator(new StaxLocator(rdr));
+
+    try {
+      PathNode cur = root;
+
+      while (rdr.hasNext()) {
+        switch (rdr.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          cur = child(cur, rdr.getLocalName());
+          start(cur, rdr);
+          break;
+
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+          cur.bodyText.append(rdr.getTextCharacters(),
+                              rdr.getTextStart(),
+                              rdr.getTextLength());
+          break;
+
+        case XMLStreamConstants.END_ELEMENT:
+          end(cur, rdr);
+          cur = cur.parent;
+          break;
+
+        default:
+        }
+      }
+    } finally {
+      rdr.close();
+    }
+
+    for (Object o: digester.getRules().rules()) {
+      ((Rule)o).finish();
+    }
+
+    digester.clear();
+  }
+
+  private PathNode child(final PathNode parent, final String name) {
+    if (parent.children == null) {
+      parent.children = new HashMap<String, PathNode>();
+    }
+
+    PathNode node = parent.children.get(name);
+
+    if (node != null) {
+      return node;
+    }
+
+    String match;
+    if (parent.match.length() == 0) {
+      match = name;
+    } else {
+      match = parent.match + "/" + name;
+    }
+
+    node = new PathNode(parent, match);
+    node.rules = digester.getRules().match(null, match);
+    parent.children.put(name, node);
+
+    return node;
+  }
+
+  private void start(final PathNode node,
+                     final XMLStreamReader rdr) throws Throwable {
+    node.bodyText.setLength(0);
+    digester.setMatch(node.match);
+
+    if ((node.rules == null) || node.rules.isEmpty()) {
+      return;
+    }
+
+    attrs.clear();
+    for (int i = 0; i < rdr.getAttributeCount(); i++) {
+      attrs.addAttribute(ns(rdr.getAttributeNamespace(i)),
+                         rdr.getAttributeLocalName(i),
+                         rdr.getAttributeLocalName(i),
+                         "CDATA",
+                         rdr.getAttributeValue(i));
+    }
+
+    String ns = ns(rdr.getNamespaceURI());
+    String name = rdr.getLocalName();
+
+    for (Rule rule: node.rules) {
+      rule.begin(ns, name, attrs);
+    }
+  }
+
+  private void end(final PathNode node,
+                   final XMLStreamReader rdr) throws Throwable {
+    if ((node.rules != null) && !node.rules.isEmpty()) {
+      String ns = ns(rdr.getNamespaceURI());
+      String name = rdr.getLocalName();
+      String text = node.bodyText.toString();
+
+      for (Rule rule: node.rules) {
+        rule.body(ns, name, text);
+      }
+
+      for (int i = node.rules.size() - 1; i >= 0; i--) {
+        node.rules.get(i).end(ns, name);
+      }
+    }
+
+    digester.setMatch(node.parent.match);
+  }
+
+  private String ns(final String val) {
+    if (val == null) {
+      return "";
+    }
+
+    return val;
+  }
+}
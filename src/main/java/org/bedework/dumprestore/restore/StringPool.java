@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import java.util.HashMap;
+
+/** Hands back one shared copy of strings which repeat - owner hrefs,
+ * collection paths, timezone ids.
+ *
+ * <p>Every value the parser gives us is a new string. A dump has a few
+ * thousand distinct hrefs and paths repeated in millions of events, and
+ * batching and the pipeline keep many of those events alive at once.
+ *
+ * <p>Once the pool holds maxSize strings new values are no longer added -
+ * they are returned as they are - so a field with mostly distinct values
+ * can't grow it without limit.
+ *
+ * <p>All methods are synchronized.
+ */
+public class StringPool {
+  /** Default maximum number of strings held */
+  public static final int defaultMaxSize = 200000;
+
+  private HashMap<String, String> pool = new HashMap<String, String>();
+
+  private int maxSize;
+
+  /** Number of times we returned a pooled copy */
+  public long hits;
+
+  /** Number of values not already pooled */
+  public long misses;
+
+  /**
+   * @param maxSize
+   */
+  public StringPool(final int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * @param val - may be null
+   * @return the pooled copy of val or val
+   */
+  public synchronized String get(final String val) {
+    if (val == null) {
+      return null;
+    }
+
+    String s = pool.get(val);
+
+    if (s != null) {
+      hits++;
+      return s;
+    }
+
+    misses++;
+
+    if (pool.size() < maxSize) {
+      pool.put(val, val);
+    }
+
+    return val;
+  }
+
+  /**
+   * @return number of strings held
+   */
+  public synchronized int size() {
+    return pool.size();
+  }
+}
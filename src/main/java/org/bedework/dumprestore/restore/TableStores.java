@@ -0,0 +1,215 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Decides where the large restore tables keep their entries.
+ *
+ * <p>A table starts on the heap. Once it has spillThreshold entries it is
+ * copied into an off-heap ByteStore, and once it has mappedThreshold it is
+ * copied again into a store mapped from a scratch file in dir. A threshold
+ * of 0 turns that step off.
+ *
+ * <p>Off-heap stores use direct memory, which the JVM caps at
+ * -XX:MaxDirectMemorySize (the heap size if that is not set). Between them
+ * they get at most offHeapLimit bytes. Once that would be exceeded new and
+ * growing tables go to mapped stores whatever mappedThreshold says.
+ *
+ * <p>Closing a store frees its buffers and deletes its files straight away.
+ */
+public class TableStores {
+  /** Default entries before a table leaves the heap */
+  public static final int defaultSpillThreshold = 500000;
+
+  /** Default entries before a table goes to disk */
+  public static final int defaultMappedThreshold = 5000000;
+
+  /** Entries before a table leaves the heap. 0 to keep it there */
+  public int spillThreshold = defaultSpillThreshold;
+
+  /** Entries before a table goes to disk. 0 to keep it off-heap */
+  public int mappedThreshold = defaultMappedThreshold;
+
+  /** Where mapped stores put their files. Null for the temp dir */
+  public File dir;
+
+  /** Most direct memory the off-heap stores may use. Half the JVM limit
+   * by default to leave room for the driver and nio.
+   */
+  public long offHeapLimit = directMemoryLimit() / 2;
+
+  private AtomicLong offHeapInUse = new AtomicLong();
+
+  private List<ByteStore> stores = new ArrayList<ByteStore>();
+
+  private transient Logger log;
+
+  /**
+   * @param heapSize - entries on the heap
+   * @return true if a heap table of this size should move to a store
+   */
+  public boolean spill(final int heapSize) {
+    return (spillThreshold > 0) && (heapSize >= spillThreshold);
+  }
+
+  /** If the store has got too big for where it is move it.
+   *
+   * @param name - of the table
+   * @param store
+   * @return the store or its replacement
+   * @throws Throwable
+   */
+  public ByteStore checkStore(final String name,
+                              final ByteStore store) throws Throwable {
+    if (store instanceof ByteStore.Mapped) {
+      return store;
+    }
+
+    if (((mappedThreshold <= 0) || (store.size() < mappedThreshold)) &&
+        offHeapRoom()) {
+      return store;
+    }
+
+    ByteStore ns = newStore(name, store.size());
+
+    for (int i = 0; i < store.getSlots(); i++) {
+      byte[] key = store.key(i);
+
+      if (key != null) {
+        ns.put(key, store.value(i));
+      }
+    }
+
+    close(store);
+
+    return ns;
+  }
+
+  /**
+   * @param store
+   * @throws Throwable
+   */
+  public synchronized void close(final ByteStore store) throws Throwable {
+    stores.remove(store);
+    store.close();
+  }
+
+  /** Close all the stores we handed out, freeing their memory and
+   * deleting their files.
+   *
+   * @throws Throwable
+   */
+  public synchronized void closeAll() throws Throwable {
+    for (ByteStore s: stores) {
+      s.close();
+    }
+
+    stores.clear();
+  }
+
+  /**
+   * @param name - of the table
+   * @param size - number of entries we are about to copy in
+   * @return a new empty store of the right kind for that many
+   * @throws Throwable
+   */
+  public synchronized ByteStore newStore(final String name,
+                                         final int size) throws Throwable {
+    ByteStore s;
+
+    if (((mappedThreshold > 0) && (size >= mappedThreshold)) ||
+        !offHeapRoom()) {
+      s = new ByteStore.Mapped(dir, name);
+    } else {
+      s = new ByteStore.OffHeap(offHeapInUse);
+    }
+
+    stores.add(s);
+
+    getLog().info("Table " + name + " moved to " + s.getKind() +
+                  " store at " + size + " entries");
+
+    return s;
+  }
+
+  /**
+   * @return direct bytes held by our off-heap stores
+   */
+  public long getOffHeapInUse() {
+    return offHeapInUse.get();
+  }
+
+  /* Room for another chunk plus an index doubling */
+  private boolean offHeapRoom() {
+    return offHeapInUse.get() + 2L * ByteStore.chunkSize <= offHeapLimit;
+  }
+
+  /* -XX:MaxDirectMemorySize if set, otherwise the JVM uses the max heap */
+  static long directMemoryLimit() {
+    try {
+      for (String arg: ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+        if (arg.startsWith("-XX:MaxDirectMemorySize=")) {
+          return parseSize(arg.substring(arg.indexOf('=') + 1));
+        }
+      }
+    } catch (Throwable t) {
+    }
+
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  static long parseSize(final String val) {
+    String s = val.trim().toLowerCase();
+    long mult = 1;
+
+    switch (s.charAt(s.length() - 1)) {
+    case 'k':
+      mult = 1L << 10;
+      break;
+    case 'm':
+      mult = 1L << 20;
+      break;
+    case 'g':
+      mult = 1L << 30;
+      break;
+    case 't':
+      mult = 1L << 40;
+      break;
+    default:
+      return Long.parseLong(s);
+    }
+
+    return Long.parseLong(s.substring(0, s.length() - 1)) * mult;
+  }
+
+  private Logger getLog() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+}
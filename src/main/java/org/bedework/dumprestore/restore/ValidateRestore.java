@@ -0,0 +1,735 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.bedework.calcorei.HibSession;
+import org.bedework.calfacade.BwAlarm;
+import org.bedework.calfacade.BwAttendee;
+import org.bedework.calfacade.BwCalendar;
+import org.bedework.calfacade.BwCategory;
+import org.bedework.calfacade.BwContact;
+import org.bedework.calfacade.BwEvent;
+import org.bedework.calfacade.BwEventObj;
+import org.bedework.calfacade.BwEventProxy;
+import org.bedework.calfacade.BwFilterDef;
+import org.bedework.calfacade.BwLocation;
+import org.bedework.calfacade.BwPrincipal;
+import org.bedework.calfacade.BwSystem;
+import org.bedework.calfacade.BwUser;
+import org.bedework.calfacade.base.BwDbentity;
+import org.bedework.calfacade.exc.CalFacadeException;
+import org.bedework.calfacade.svc.BwAdminGroup;
+import org.bedework.calfacade.svc.BwAuthUser;
+import org.bedework.calfacade.svc.BwCalSuite;
+import org.bedework.calfacade.svc.EventInfo;
+import org.bedework.calfacade.svc.prefs.BwPreferences;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** A RestoreIntf which writes nothing. Entities are indexed in memory as
+ * they are "restored" and lookups are resolved against those indexes, so
+ * all the rules run as they would for a real restore at parser speed.
+ *
+ * <p>Anything we are asked for but don't have is counted as unresolved and
+ * we hand back a stand-in so the rules carry on and we see every problem
+ * in the dump rather than just the first. Timezone problems are collected
+ * by the rules in the globals as usual. Schema errors are counted when the
+ * parser is validating.
+ *
+ * @version 1.0
+ */
+public class ValidateRestore implements RestoreIntf {
+  /** Maximum number of unresolved keys we list for each kind */
+  public static final int maxListed = 50;
+
+  private RestoreGlobals globals;
+
+  private Map<String, BwUser> users = new HashMap<String, BwUser>();
+
+  private Map<String, BwAdminGroup> adminGroups =
+    new HashMap<String, BwAdminGroup>();
+
+  private RestoreGlobals.CalendarMap calendars =
+    new RestoreGlobals.CalendarMap();
+
+  /* Keys of the events we have seen - colPath, recurrenceId and uid. We
+   * don't keep the events themselves: a big dump would not fit.
+   */
+  private Set<String> eventKeys = new HashSet<String>();
+
+  /* Recurring masters by key - the only events lookups need whole */
+  private Map<String, BwEvent> masters = new HashMap<String, BwEvent>();
+
+  /* colPath + "/" + name */
+  private Set<String> eventNames = new HashSet<String>();
+
+  /* Stand-ins we handed out for things we didn't have */
+  private Set<Object> standIns =
+    Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+  private int nextId = 1;
+
+  private Unresolved principals = new Unresolved("principals");
+  private Unresolved adminGroupRefs = new Unresolved("admin groups");
+  private Unresolved collections = new Unresolved("collections");
+  private Unresolved categories = new Unresolved("categories");
+  private Unresolved locations = new Unresolved("locations");
+  private Unresolved contacts = new Unresolved("contacts");
+  private Unresolved eventRefs = new Unresolved("events");
+
+  private int duplicateEvents;
+
+  private SchemaErrors schemaErrors;
+
+  private transient Logger log;
+
+  /* References to something we don't have */
+  private static class Unresolved {
+    String kind;
+
+    int count;
+
+    TreeSet<String> keys = new TreeSet<String>();
+
+    Unresolved(final String kind) {
+      this.kind = kind;
+    }
+
+    void add(final String key) {
+      count++;
+
+      if (keys.size() < maxListed) {
+        keys.add(String.valueOf(key));
+      }
+    }
+  }
+
+  /** Counts and lists errors reported by a validating parser.
+   */
+  public static class SchemaErrors implements ErrorHandler {
+    int warnings;
+
+    int errors;
+
+    List<String> listed = new ArrayList<String>();
+
+    @Override
+    public void warning(final SAXParseException e) {
+      warnings++;
+    }
+
+    @Override
+    public void error(final SAXParseException e) {
+      errors++;
+      list(e);
+    }
+
+    @Override
+    public void fatalError(final SAXParseException e) throws SAXParseException {
+      errors++;
+      list(e);
+
+      throw e;
+    }
+
+    private void list(final SAXParseException e) {
+      if (listed.size() < maxListed) {
+        listed.add("line " + e.getLineNumber() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return handler to give a validating parser
+   */
+  public SchemaErrors getSchemaErrors() {
+    if (schemaErrors == null) {
+      schemaErrors = new SchemaErrors();
+    }
+
+    return schemaErrors;
+  }
+
+  /** Report what we found
+   *
+   * @param infoLines - null for logged output only
+   */
+  public void stats(final List<String> infoLines) {
+    info(infoLines, "Validation - nothing was written to the database");
+    info(infoLines, " ");
+
+    int total = 0;
+
+    for (Unresolved u: new Unresolved[]{principals,
+                                        adminGroupRefs,
+                                        collections,
+                                        categories,
+                                        locations,
+                                        contacts,
+                                        eventRefs}) {
+      if (u.count == 0) {
+        continue;
+      }
+
+      total += u.count;
+
+      info(infoLines, "    Unresolved " + u.kind + ": " + u.count);
+      for (String k: u.keys) {
+        info(infoLines, "        " + k);
+      }
+
+      if (u.count > u.keys.size()) {
+        info(infoLines, "        ...");
+      }
+    }
+
+    if (total == 0) {
+      info(infoLines, "    No unresolved references");
+    }
+
+    info(infoLines, "    Duplicate events: " + duplicateEvents);
+
+    if (schemaErrors != null) {
+      info(infoLines, "    Schema errors: " + schemaErrors.errors +
+           ", warnings: " + schemaErrors.warnings);
+      for (String s: schemaErrors.listed) {
+        info(infoLines, "        " + s);
+      }
+
+      if (schemaErrors.errors > schemaErrors.listed.size()) {
+        info(infoLines, "        ...");
+      }
+    }
+
+    info(infoLines, " ");
+  }
+
+  @Override
+  public void init(final RestoreGlobals globals) throws Throwable {
+    this.globals = globals;
+  }
+
+  @Override
+  public RestoreIntf newInstance() throws Throwable {
+    /* We don't run workers when validating - there's nothing to wait for */
+    return this;
+  }
+
+  @Override
+  public HibSession getSession() throws CalFacadeException {
+    return null;
+  }
+
+  @Override
+  public void open() throws Throwable {
+  }
+
+  @Override
+  public void startTransaction() throws Throwable {
+  }
+
+  @Override
+  public void endTransactionNow() throws Throwable {
+  }
+
+  @Override
+  public void endTransaction() throws Throwable {
+  }
+
+  @Override
+  public void close() throws Throwable {
+  }
+
+  @Override
+  public void restoreSyspars(final BwSystem o) throws Throwable {
+  }
+
+  @Override
+  public void updateSyspars(final BwSystem o) throws Throwable {
+  }
+
+  @Override
+  public void restoreUser(final BwUser o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o.getPrincipalRef())) {
+      return;
+    }
+
+    setId(o);
+
+    BwUser prev = users.put(o.getAccount(), o);
+
+    if ((prev != null) && !standIns.contains(prev)) {
+      error("Duplicate user " + o.getAccount());
+    }
+
+    globals.principalCache.put(o);
+  }
+
+  @Override
+  public void restoreAttendee(final BwAttendee o) throws Throwable {
+  }
+
+  @Override
+  public void restoreAlarm(final BwAlarm o) throws Throwable {
+  }
+
+  @Override
+  public void restoreAdminGroup(final BwAdminGroup o) throws Throwable {
+    setId(o);
+
+    checkPrincipal(o.getGroupOwnerHref());
+    checkPrincipal(o.getOwnerHref());
+
+    adminGroups.put(o.getAccount(), o);
+  }
+
+  @Override
+  public void updateAdminGroup(final BwAdminGroup o) throws Throwable {
+  }
+
+  @Override
+  public void addAdminGroupMember(final BwAdminGroup o,
+                                  final BwPrincipal pr) throws Throwable {
+  }
+
+  @Override
+  public BwAdminGroup getAdminGroup(final String name) throws Throwable {
+    BwAdminGroup grp = adminGroups.get(name);
+
+    if (grp == null) {
+      adminGroupRefs.add(name);
+
+      grp = new BwAdminGroup();
+      grp.setAccount(name);
+      setId(grp);
+      standIns.add(grp);
+
+      adminGroups.put(name, grp);
+    }
+
+    return grp;
+  }
+
+  @Override
+  public void restoreAuthUser(final BwAuthUser o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o.getUserHref())) {
+      return;
+    }
+
+    checkPrincipal(o.getUserHref());
+  }
+
+  @Override
+  public void restoreEvent(final EventInfo ei) throws Throwable {
+    BwEvent ev = ei.getEvent();
+
+    if (!globals.onlyUsersMap.check(ev)) {
+      return;
+    }
+
+    if (ev instanceof BwEventProxy) {
+      ev = ((BwEventProxy)ev).getRef();
+    }
+
+    checkPrincipal(ev.getOwnerHref());
+    checkPrincipal(ev.getCreatorHref());
+    getCalendar(ev.getColPath());
+
+    setId(ev);
+
+    String key = eventKey(ev.getColPath(), ev.getRecurrenceId(), ev.getUid());
+
+    if (!eventKeys.add(key)) {
+      duplicateEvents++;
+    }
+
+    if (ev.testRecurring()) {
+      masters.put(key, ev);
+    }
+
+    if (ev.getName() != null) {
+      eventNames.add(ev.getColPath() + "/" + ev.getName());
+    }
+  }
+
+  @Override
+  public BwEvent getEvent(final BwUser user,
+                          final String colPath,
+                          final String recurrenceId,
+                          final String uid) throws Throwable {
+    String key = eventKey(colPath, recurrenceId, uid);
+
+    if (!eventKeys.contains(key)) {
+      // The rules report the event. We just count it
+      eventRefs.add(key);
+      return null;
+    }
+
+    BwEvent ev = masters.get(key);
+
+    if (ev != null) {
+      return ev;
+    }
+
+    /* We had it but didn't keep it. The rules only need something to
+     * point at.
+     */
+    ev = new BwEventObj();
+    ev.setColPath(colPath);
+    ev.setRecurrenceId(recurrenceId);
+    ev.setUid(uid);
+    setId(ev);
+
+    return ev;
+  }
+
+  @Override
+  public boolean eventNameExists(final BwCalendar cal,
+                                 final String name) throws Throwable {
+    return eventNames.contains(cal.getPath() + "/" + name);
+  }
+
+  @Override
+  public void update(final BwEvent o) throws Throwable {
+  }
+
+  @Override
+  public void restoreCategory(final BwCategory o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o)) {
+      return;
+    }
+
+    setId(o);
+    globals.categoryCache.put(o.getUid(), o);
+  }
+
+  @Override
+  public void restoreCalSuite(final BwCalSuite o) throws Throwable {
+  }
+
+  @Override
+  public void restoreLocation(final BwLocation o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o)) {
+      return;
+    }
+
+    String uid = o.getUid();
+
+    BwLocation prev = globals.locationCache.get(uid);
+
+    if ((prev != null) && !standIns.contains(prev)) {
+      // As HibRestore - make unique but warn.
+      warn("Location found with duplicate uid: " + uid);
+      o.initUid();
+
+      globals.locationsUidTbl.put(
+         new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
+    }
+
+    setId(o);
+    globals.locationCache.put(o.getUid(), o);
+  }
+
+  @Override
+  public void restoreContact(final BwContact o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o)) {
+      return;
+    }
+
+    String uid = o.getUid();
+
+    BwContact prev = globals.contactCache.get(uid);
+
+    if ((prev != null) && !standIns.contains(prev)) {
+      // As HibRestore - make unique but warn.
+      warn("Contact found with duplicate uid: " + uid);
+      o.initUid();
+
+      globals.contactsUidTbl.put(
+         new OwnerUidKey(o.getOwnerHref(), uid), o.getUid());
+    }
+
+    setId(o);
+    globals.contactCache.put(o.getUid(), o);
+  }
+
+  @Override
+  public void restoreFilter(final BwFilterDef o) throws Throwable {
+  }
+
+  @Override
+  public void restoreUserPrefs(final BwPreferences o) throws Throwable {
+    if (!globals.onlyUsersMap.check(o)) {
+      return;
+    }
+
+    checkPrincipal(o.getOwnerHref());
+  }
+
+  @Override
+  public void update(final BwUser user) throws Throwable {
+  }
+
+  @Override
+  public BwCalendar getCalendar(final String path) throws Throwable {
+    BwCalendar cal = calendars.get(path);
+
+    if (cal == null) {
+      collections.add(path);
+
+      cal = new BwCalendar();
+      cal.setPath(path);
+      setId(cal);
+      standIns.add(cal);
+
+      calendars.put(cal);
+    }
+
+    return cal;
+  }
+
+  @Override
+  public BwCategory getCategory(final OwnerUidKey key) throws Throwable {
+    return getCategory(key.getUid());
+  }
+
+  @Override
+  public BwCategory getCategory(final String uid) throws Throwable {
+    BwCategory ent = globals.categoryCache.lookup(uid);
+
+    if (ent == null) {
+      categories.add(uid);
+
+      ent = new BwCategory();
+      ent.setUid(uid);
+      setId(ent);
+      standIns.add(ent);
+
+      globals.categoryCache.put(uid, ent);
+    }
+
+    return ent;
+  }
+
+  @Override
+  public BwContact getContact(final OwnerUidKey key) throws Throwable {
+    String uid = globals.contactsUidTbl.get(key);
+
+    if (uid == null) {
+      uid = key.getUid();
+    }
+
+    return getContact(uid);
+  }
+
+  @Override
+  public BwContact getContact(final String uid) throws Throwable {
+    BwContact ent = globals.contactCache.lookup(uid);
+
+    if (ent == null) {
+      contacts.add(uid);
+
+      ent = new BwContact();
+      ent.setUid(uid);
+      setId(ent);
+      standIns.add(ent);
+
+      globals.contactCache.put(uid, ent);
+    }
+
+    return ent;
+  }
+
+  @Override
+  public BwLocation getLocation(final OwnerUidKey key) throws Throwable {
+    String uid = globals.locationsUidTbl.get(key);
+
+    if (uid == null) {
+      uid = key.getUid();
+    }
+
+    return getLocation(uid);
+  }
+
+  @Override
+  public BwLocation getLocation(final String uid) throws Throwable {
+    BwLocation ent = globals.locationCache.lookup(uid);
+
+    if (ent == null) {
+      locations.add(uid);
+
+      ent = new BwLocation();
+      ent.setUid(uid);
+      setId(ent);
+      standIns.add(ent);
+
+      globals.locationCache.put(uid, ent);
+    }
+
+    return ent;
+  }
+
+  @Override
+  public BwUser getUser(final String account) throws Throwable {
+    BwUser u = users.get(account);
+
+    if (u == null) {
+      principals.add(account);
+
+      u = new BwUser();
+      u.setAccount(account);
+      globals.setPrincipalHref(u);
+      setId(u);
+      standIns.add(u);
+
+      users.put(account, u);
+    }
+
+    return u;
+  }
+
+  @Override
+  public void saveRootCalendar(final BwCalendar val) throws Throwable {
+    if (!globals.onlyUsersMap.check(val)) {
+      return;
+    }
+
+    addCal(val);
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val) throws Throwable {
+    if (!globals.onlyUsersMap.check(val)) {
+      return;
+    }
+
+    getCalendar(val.getColPath());
+    addCal(val);
+  }
+
+  @Override
+  public String getUserHome(final BwUser user) throws Throwable {
+    return "/" + globals.getSyspars().getUserCalendarRoot() + "/" +
+           user.getAccount();
+  }
+
+  @Override
+  public void addCalendar(final BwCalendar val,
+                          final String parentPath) throws Throwable {
+    getCalendar(parentPath);
+
+    if (val.getPath() == null) {
+      val.setColPath(parentPath);
+      val.setPath(parentPath + "/" + val.getName());
+    }
+
+    addCal(val);
+  }
+
+  /* ====================================================================
+   *                       Private methods
+   * ==================================================================== */
+
+  private void addCal(final BwCalendar val) throws Throwable {
+    checkPrincipal(val.getOwnerHref());
+
+    BwCalendar cal = calendars.get(val.getPath());
+
+    if ((cal != null) && !standIns.contains(cal)) {
+      error("Duplicate collection " + val.getPath());
+    }
+
+    setId(val);
+    calendars.put(val);
+  }
+
+  private void checkPrincipal(final String href) throws Throwable {
+    if (href == null) {
+      return;
+    }
+
+    BwPrincipal p = null;
+    try {
+      p = globals.getPrincipal(href, this);
+    } catch (Throwable t) {
+      // Group principals are unimplemented
+    }
+
+    if (p == null) {
+      principals.add(href);
+    }
+  }
+
+  private void setId(final BwDbentity<?> val) {
+    val.setId(nextId);
+    nextId++;
+  }
+
+  private String eventKey(final String colPath,
+                          final String recurrenceId,
+                          final String uid) {
+    return colPath + "\t" + recurrenceId + "\t" + uid;
+  }
+
+  private Logger getLog() {
+    if (log == null) {
+      log = Logger.getLogger(this.getClass());
+    }
+
+    return log;
+  }
+
+  private void info(final List<String> infoLines, final String msg) {
+    if (infoLines != null) {
+      infoLines.add(msg + "\n");
+    }
+
+    getLog().info(msg);
+  }
+
+  private void warn(final String msg) {
+    synchronized (globals) {
+      globals.warnings++;
+    }
+
+    globals.messages.warningMessage(msg);
+    getLog().warn(msg);
+  }
+
+  private void error(final String msg) {
+    synchronized (globals) {
+      globals.errors++;
+    }
+
+    globals.messages.errorMessage(msg);
+    getLog().error(msg);
+  }
+}
@@ -56,28 +56,30 @@ public class ContainerPathRule extends EntityFieldRule {
         }
       }
 
-      BwCalendar cal = globals.rintf.getCalendar(stringFld());
+      String path = pooledFld();
+
+      BwCalendar cal = globals.rintf.getCalendar(path);
       if (cal == null) {
-        error("No calendar for path " + stringFld());
+        error("No calendar for path " + path);
       }
 
       if (top() instanceof BwShareableContainedDbentity) {
         BwShareableContainedDbentity scde = (BwShareableContainedDbentity)top();
-        scde.setColPath(stringFld());
+        scde.setColPath(path);
       } else if (top() instanceof EventInfo) {
         if (ann != null) {
           /* Could be target or master */
           String match = getDigester().getMatch();
 
           if (match.contains("/target/")) {
-            ann.getTarget().setColPath(stringFld());
+            ann.getTarget().setColPath(path);
           } else if (match.contains("/master/")) {
-            ann.getMaster().setColPath(stringFld());
+            ann.getMaster().setColPath(path);
           } else {
-            ann.setColPath(stringFld());
+            ann.setColPath(path);
           }
         }
-        e.setColPath(stringFld());
+        e.setColPath(path);
       } else {
         handleException(new Exception("Unexpected stack top "));
       }
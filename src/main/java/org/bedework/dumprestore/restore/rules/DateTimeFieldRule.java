@@ -35,7 +35,7 @@ public class DateTimeFieldRule extends EntityFieldRule {
     if (name.equals("date")) {
       dtv.date = stringFld();
     } else if (name.equals("tzid")) {
-      dtv.tzid = stringFld();
+      dtv.tzid = pooledFld();
     } else if (name.equals("dateType")) {
       dtv.dateType = booleanFld();
     } else if (name.equals("dtval")) {
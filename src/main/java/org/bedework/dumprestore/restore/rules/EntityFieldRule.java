@@ -181,7 +181,7 @@ public abstract class EntityFieldRule extends RestoreRule {
 
     if (name.equals("colPath") ||
         name.equals("calendar-path")) {     // PRE3.5
-      String path = stringFld();
+      String path = pooledFld();
 
       if ((path != null) && (path.length() > 0)) {
         entity.setColPath(path);
@@ -466,7 +466,7 @@ public abstract class EntityFieldRule extends RestoreRule {
      * from different principal root paths
      */
 
-    return fldval;
+    return globals.stringPool.get(fldval);
   }
 
   protected BwUser userFld() throws Exception {
@@ -657,6 +657,11 @@ public abstract class EntityFieldRule extends RestoreRule {
     return  fldval;
   }
 
+  /* For values repeated across many entities - paths, tzids */
+  protected String pooledFld() throws Exception {
+    return globals.stringPool.get(fldval);
+  }
+
   protected boolean booleanFld() throws Exception {
     if (fldval == null) {
       throw new Exception("No value for " + tagName);
@@ -378,7 +378,7 @@ public class EventFieldRule extends EntityFieldRule {
       dtv.dateType = booleanFld();
     } else if (name.equals("start-tzid")) {
       dtv = getDtv(dtv, true);
-      dtv.tzid = stringFld();
+      dtv.tzid = pooledFld();
     } else if (name.equals("start-dtval")) {
       dtv = getDtv(dtv, true);
       dtv.dtval = fixedDateTimeFld();
@@ -398,7 +398,7 @@ public class EventFieldRule extends EntityFieldRule {
       dtv.dateType = booleanFld();
     } else if (name.equals("end-tzid")) {
       dtv = getDtv(dtv, true);
-      dtv.tzid = stringFld();
+      dtv.tzid = pooledFld();
     } else if (name.equals("end-dtval")) {
       dtv = getDtv(dtv, true);
       dtv.dtval = fixedDateTimeFld();
@@ -418,7 +418,7 @@ public class EventFieldRule extends EntityFieldRule {
       dtv.dateType = booleanFld();
     } else if (name.equals("rdate-tzid")) {
       dtv = getDtv(dtv, true);
-      dtv.tzid = stringFld();
+      dtv.tzid = pooledFld();
     } else if (name.equals("rdate-dtval")) {
       dtv = getDtv(dtv, true);
       dtv.dtval = stringFld();
@@ -434,7 +434,7 @@ public class EventFieldRule extends EntityFieldRule {
       dtv.dateType = booleanFld();
     } else if (name.equals("exdate-tzid")) {
       dtv = getDtv(dtv, true);
-      dtv.tzid = stringFld();
+      dtv.tzid = pooledFld();
     } else if (name.equals("exdate-dtval")) {
       dtv = getDtv(dtv, true);
       dtv.dtval = stringFld();
@@ -153,28 +153,62 @@ public class EventRule extends EntityRule {
       }
     }
 
+    if (override) {
+      pop();
+
+      if (!(top() instanceof EventInfo)) {
+        warn("Not restoring event because of previous error");
+        warn(top().toString());
+        return;
+      }
+
+      if (globals.config.getDebug()) {
+        trace("Add override to event ");
+      }
+      EventInfo masterei = (EventInfo)top();
+      masterei.addOverride(ei);
+      return;
+    }
+
+    if (alias && (globals.eventWorkers != null)) {
+      /* The target and master may still be queued in an event worker.
+       * Resolve the alias once the workers have drained at the end of the
+       * section.
+       */
+      globals.deferredAliases.add(ei);
+    } else {
+      restore(ei, alias);
+    }
+
+    pop();
+  }
+
+  /** Restore the aliases deferred while the event workers were running.
+   * Called at the end of the section after the workers have drained.
+   *
+   * @throws Exception
+   */
+  public void restoreDeferredAliases() throws Exception {
+    for (EventInfo ei: globals.deferredAliases) {
+      restore(ei, true);
+    }
+
+    globals.deferredAliases.clear();
+  }
+
+  private void restore(final EventInfo ei,
+                       final boolean alias) throws Exception {
+    BwEvent entity = ei.getEvent();
+
+    if (entity instanceof BwEventProxy) {
+      entity = ((BwEventProxy)entity).getRef();
+    }
+
     // Out here for debugging
     BwEvent target = null;
     BwEvent master = null;
 
     try {
-      if (override) {
-        pop();
-
-        if (!(top() instanceof EventInfo)) {
-          warn("Not restoring event because of previous error");
-          warn(top().toString());
-          return;
-        }
-
-        if (globals.config.getDebug()) {
-          trace("Add override to event ");
-        }
-        EventInfo masterei = (EventInfo)top();
-        masterei.addOverride(ei);
-        return;
-      }
-
       if (alias) {
         BwEventAnnotation ann = (BwEventAnnotation)entity;
 
@@ -184,6 +218,7 @@ public class EventRule extends EntityRule {
         // XXX Never did get on table globals.aliasTbl.put(ann);
 
         target = ann.getTarget();
+
         BwUser annOwner = globals.getUser(ann.getOwnerHref());
         BwEvent ntarget = globals.rintf.getEvent(annOwner,
                                                  target.getColPath(),
@@ -224,10 +259,14 @@ public class EventRule extends EntityRule {
         ok = false;
       }
 
-      if (ok && (globals.rintf != null)) {
+      if (ok && !alias && (globals.eventWorkers != null)) {
+        globals.eventWorkers.add(ei);
+      } else if (ok && (globals.rintf != null)) {
         globals.rintf.restoreEvent(ei);
       }
     } catch (CalFacadeException cfe) {
+      checkpointFailed(cfe);
+
       if (cfe.getMessage().equals(CalFacadeException.noRecurrenceInstances)) {
         error("Event has no recurrence instances - not restored." + entity);
       } else {
@@ -235,11 +274,18 @@ public class EventRule extends EntityRule {
         cfe.printStackTrace();
       }
     } catch (Throwable t) {
+      checkpointFailed(t);
+
       error("Unable to save event " + entity);
       t.printStackTrace();
     }
+  }
 
-    pop();
+  /* A lost batch stops the restore - don't carry on with the next event */
+  private void checkpointFailed(final Throwable t) throws Exception {
+    if ((globals.checkpointer != null) && globals.checkpointer.failed()) {
+      throw new Exception(t);
+    }
   }
 }
 
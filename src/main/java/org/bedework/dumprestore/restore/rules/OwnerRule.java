@@ -41,8 +41,8 @@ public class OwnerRule extends CreatorRule {
   public void end(String ns, String name) throws Exception {
     BwPrincipal p = doPrincipal();
 
-    if (top() instanceof OwnerUidKey) {
-      OwnerUidKey key = (OwnerUidKey)top();
+    if (top() instanceof OwnerUidKey.Probe) {
+      OwnerUidKey.Probe key = (OwnerUidKey.Probe)top();
 
       key.setOwnerHref(p.getPrincipalRef());
       globals.inOwnerKey = false;
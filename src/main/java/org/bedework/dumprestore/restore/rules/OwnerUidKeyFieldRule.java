@@ -32,7 +32,7 @@ public class OwnerUidKeyFieldRule extends EntityFieldRule {
   }
 
   public void end(String ns, String name) throws Exception {
-    OwnerUidKey key = (OwnerUidKey)top();
+    OwnerUidKey.Probe key = (OwnerUidKey.Probe)top();
 
     if (name.equals("owner-key")) {
     } else if (name.equals("uid")) {
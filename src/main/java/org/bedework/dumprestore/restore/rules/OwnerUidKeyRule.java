@@ -30,12 +30,16 @@ import org.xml.sax.Attributes;
  * @version 1.0
  */
 public abstract class OwnerUidKeyRule extends RestoreRule {
+  /* Keys are only looked up, never stored, so one probe does for all */
+  private OwnerUidKey.Probe probe = new OwnerUidKey.Probe();
+
   OwnerUidKeyRule(RestoreGlobals globals) {
     super(globals);
   }
 
   public void begin(String ns, String name, Attributes att) {
-    push(new OwnerUidKey());
+    probe.reset();
+    push(probe);
   }
 
   public void end(String ns, String name) throws Exception {
@@ -46,7 +50,7 @@ public abstract class OwnerUidKeyRule extends RestoreRule {
   }
 
   /**
-   * @param key
+   * @param key - a probe which is reused once this returns
    * @throws Exception
    */
   public abstract void storeEntity(OwnerUidKey key) throws Exception;
@@ -0,0 +1,181 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore.rules;
+
+import org.apache.commons.digester.Digester;
+import org.apache.commons.digester.Rule;
+import org.apache.commons.digester.Rules;
+
+import java.util.List;
+
+/** Rules implementation which remembers the rules matched for each element
+ * path.
+ *
+ * <p>The first time a path is seen it is matched by the wrapped Rules
+ * object, so the matching semantics - wildcards, parent matches, universal
+ * rules and the order of the result - are exactly those of the wrapped
+ * object. The result is stored in a tree with a node for each path segment.
+ * After that a lookup is a walk down the tree comparing segments in place,
+ * so repeated paths such as caldata/events/event/summary cost O(depth) and
+ * allocate nothing.
+ *
+ * <p>Adding rules or clearing discards the tree.
+ *
+ * @version 1.0
+ */
+public class PathTrieRules implements Rules {
+  private Rules base;
+
+  private Node root;
+
+  private String cachedNamespace;
+
+  private static class Node {
+    String name;
+
+    Node[] children;
+
+    int numChildren;
+
+    List rules;
+
+    Node(final String name) {
+      this.name = name;
+    }
+
+    /* Find or add the child for the segment of path from start to end */
+    Node child(final String path, final int start, final int end) {
+      int len = end - start;
+
+      for (int i = 0; i < numChildren; i++) {
+        Node c = children[i];
+
+        if ((c.name.length() == len) &&
+            path.regionMatches(start, c.name, 0, len)) {
+          return c;
+        }
+      }
+
+      Node c = new Node(path.substring(start, end));
+
+      if (children == null) {
+        children = new Node[4];
+      } else if (numChildren == children.length) {
+        Node[] newChildren = new Node[numChildren * 2];
+        System.arraycopy(children, 0, newChildren, 0, numChildren);
+        children = newChildren;
+      }
+
+      children[numChildren] = c;
+      numChildren++;
+
+      return c;
+    }
+  }
+
+  /**
+   * @param base - does the real matching
+   */
+  public PathTrieRules(final Rules base) {
+    this.base = base;
+    reset();
+  }
+
+  public Digester getDigester() {
+    return base.getDigester();
+  }
+
+  public void setDigester(final Digester digester) {
+    base.setDigester(digester);
+  }
+
+  public String getNamespaceURI() {
+    return base.getNamespaceURI();
+  }
+
+  public void setNamespaceURI(final String namespaceURI) {
+    base.setNamespaceURI(namespaceURI);
+  }
+
+  public void add(final String pattern, final Rule rule) {
+    base.add(pattern, rule);
+    reset();
+  }
+
+  public void clear() {
+    base.clear();
+    reset();
+  }
+
+  /** @deprecated Call match(namespaceURI,pattern) instead.
+   */
+  @Deprecated
+  public List match(final String pattern) {
+    return match(null, pattern);
+  }
+
+  public List match(final String namespaceURI, final String pattern) {
+    if (!sameNamespace(namespaceURI)) {
+      /* We only cache for one namespace - dumps don't use them */
+      return base.match(namespaceURI, pattern);
+    }
+
+    Node n = root;
+    int len = pattern.length();
+    int start = 0;
+
+    while (start <= len) {
+      int end = pattern.indexOf('/', start);
+      if (end < 0) {
+        end = len;
+      }
+
+      n = n.child(pattern, start, end);
+      start = end + 1;
+    }
+
+    if (n.rules == null) {
+      n.rules = base.match(namespaceURI, pattern);
+    }
+
+    return n.rules;
+  }
+
+  public List rules() {
+    return base.rules();
+  }
+
+  private boolean sameNamespace(final String namespaceURI) {
+    if (root.numChildren == 0) {
+      cachedNamespace = namespaceURI;
+      return true;
+    }
+
+    if (cachedNamespace == null) {
+      return namespaceURI == null;
+    }
+
+    return cachedNamespace.equals(namespaceURI);
+  }
+
+  private void reset() {
+    root = new Node("");
+    cachedNamespace = null;
+  }
+}
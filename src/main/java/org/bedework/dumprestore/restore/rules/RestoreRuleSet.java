@@ -59,7 +59,7 @@ public class RestoreRuleSet extends RuleSetBase implements Defs {
 
     PushFieldRule pathField = new PushFieldRule(globals, "path");
 
-    d.setRules(new ExtendedBaseRules());
+    d.setRules(new PathTrieRules(new ExtendedBaseRules()));
 
     /* ---------------- Universal rules ------------------------------ */
 
@@ -21,6 +21,8 @@ package org.bedework.dumprestore.restore.rules;
 
 import org.bedework.calfacade.BwPrincipal;
 import org.bedework.calfacade.svc.BwAdminGroup;
+import org.bedework.dumprestore.Defs;
+import org.bedework.dumprestore.restore.EventWorkers;
 import org.bedework.dumprestore.restore.PrincipalHref;
 import org.bedework.dumprestore.restore.RestoreGlobals;
 
@@ -43,21 +45,33 @@ public class SectionRule extends RestoreRule {
     this.sectionName = sectionName;
   }
 
-  public void begin(String ns, String name, Attributes att) {
+  public void begin(String ns, String name, Attributes att) throws Exception {
     info("Starting restore of " + sectionName);
 
-    if ("calendars".equals(name)) {
-      globals.hibBatchSize = 100;
+    globals.hibBatchSize = globals.getBatchSize(sectionName);
+    globals.stateless = globals.isStateless(sectionName);
+
+    if (globals.checkpointer != null) {
+      try {
+        globals.checkpointer.startSection(sectionName);
+      } catch (Throwable t) {
+        throw new Exception(t);
+      }
+    }
+
+    if ("events".equals(sectionName) && (globals.eventThreads > 1) &&
+        (globals.rintf != null)) {
+      try {
+        globals.eventWorkers = new EventWorkers(globals);
+      } catch (Throwable t) {
+        throw new Exception(t);
+      }
     }
   }
 
   public void end(String ns, String name) throws Exception {
     try {
-      globals.hibBatchSize = 0;
-
-      if ("calendars".equals(name)) {
-        globals.rintf.endTransactionNow();
-      } else if (name.equals("adminGroups")) {
+      if (name.equals("adminGroups")) {
         /* Add any remaining members */
         Collection<String> names = globals.adminGroupMembers.keySet();
 
@@ -83,6 +97,28 @@ public class SectionRule extends RestoreRule {
           }
         }
       }
+
+      if (globals.eventWorkers != null) {
+        globals.eventWorkers.drain();
+        globals.eventWorkers = null;
+      }
+
+      if (!globals.deferredAliases.isEmpty()) {
+        new EventRule(globals,
+                      Defs.objectEventAnnotation).restoreDeferredAliases();
+      }
+
+      /* Commit whatever is left of the last batch. Only then drop back to
+       * a transaction per entity - the queued tail of the section is
+       * written with the section batch size.
+       */
+      globals.rintf.endTransactionNow();
+      globals.hibBatchSize = 0;
+      globals.stateless = false;
+
+      if (globals.checkpointer != null) {
+        globals.checkpointer.endSection();
+      }
     } catch (Throwable t) {
       throw new Exception(t);
     }
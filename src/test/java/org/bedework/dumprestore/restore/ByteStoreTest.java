@@ -0,0 +1,227 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for ByteStore and TableStores
+ */
+public class ByteStoreTest {
+  private File dir;
+
+  /**
+   * @throws Throwable
+   */
+  @Before
+  public void setUp() throws Throwable {
+    dir = File.createTempFile("bwrestore-test", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  /** */
+  @After
+  public void tearDown() {
+    for (File f: dir.listFiles()) {
+      f.delete();
+    }
+
+    dir.delete();
+  }
+
+  /**
+   * @throws Throwable
+   */
+  @Test
+  public void testOffHeap() throws Throwable {
+    roundTrip(new ByteStore.OffHeap());
+  }
+
+  /**
+   * @throws Throwable
+   */
+  @Test
+  public void testMapped() throws Throwable {
+    ByteStore.Mapped s = new ByteStore.Mapped(dir, "test");
+
+    roundTrip(s);
+
+    /* The data file and the current index - old indexes are deleted */
+    assertEquals(2, dir.list().length);
+
+    s.close();
+    assertEquals(0, dir.list().length);
+  }
+
+  /** Keys with the same hashCode must still be told apart
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testCollisions() throws Throwable {
+    ByteStore s = new ByteStore.OffHeap();
+
+    byte[] k1 = {0, 31};
+    byte[] k2 = {1, 0};
+    assertEquals(java.util.Arrays.hashCode(k1),
+                 java.util.Arrays.hashCode(k2));
+
+    s.put(k1, bytes("one"));
+    s.put(k2, bytes("two"));
+
+    assertEquals("one", str(s.get(k1)));
+    assertEquals("two", str(s.get(k2)));
+    assertFalse(s.containsKey(new byte[]{0, 30}));
+
+    /* A replaced value is appended - the old one is returned */
+    assertEquals("one", str(s.put(k1, bytes("uno"))));
+    assertEquals("uno", str(s.get(k1)));
+    assertEquals(2, s.size());
+
+    s.close();
+  }
+
+  /** Empty keys and values are legal
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testEmpty() throws Throwable {
+    ByteStore s = new ByteStore.OffHeap();
+
+    assertNull(s.get(bytes("x")));
+    assertFalse(s.containsKey(bytes("x")));
+
+    s.put(new byte[0], new byte[0]);
+    assertArrayEquals(new byte[0], s.get(new byte[0]));
+
+    s.close();
+  }
+
+  /** Tables move to mapped stores when they get big or when the direct
+   * memory budget is used up, and closing frees the direct memory.
+   *
+   * @throws Throwable
+   */
+  @Test
+  public void testTableStores() throws Throwable {
+    TableStores ts = new TableStores();
+    ts.dir = dir;
+    ts.mappedThreshold = 100;
+    ts.offHeapLimit = Long.MAX_VALUE;
+
+    ByteStore s = ts.newStore("t", 1);
+    assertTrue(s instanceof ByteStore.OffHeap);
+
+    for (int i = 0; i < 150; i++) {
+      s.put(bytes("k" + i), bytes("v" + i));
+      s = ts.checkStore("t", s);
+
+      if (i == 50) {
+        assertTrue(s instanceof ByteStore.OffHeap);
+        assertEquals(s.memorySize(), ts.getOffHeapInUse());
+      }
+    }
+
+    assertTrue(s instanceof ByteStore.Mapped);
+    assertEquals(0, ts.getOffHeapInUse());
+
+    for (int i = 0; i < 150; i++) {
+      assertEquals("v" + i, str(s.get(bytes("k" + i))));
+    }
+
+    ts.offHeapLimit = 0;
+    assertTrue(ts.newStore("u", 1) instanceof ByteStore.Mapped);
+
+    ts.closeAll();
+    assertEquals(0, dir.list().length);
+  }
+
+  /**
+   */
+  @Test
+  public void testParseSize() {
+    assertEquals(512, TableStores.parseSize("512"));
+    assertEquals(64L << 10, TableStores.parseSize("64k"));
+    assertEquals(256L << 20, TableStores.parseSize("256M"));
+    assertEquals(2L << 30, TableStores.parseSize("2g"));
+  }
+
+  private void roundTrip(final ByteStore s) throws Throwable {
+    Map<String, String> expected = new HashMap<String, String>();
+
+    for (int i = 0; i < 20000; i++) {
+      String k = "/principals/users/u" + i;
+      String v = "uid-" + (i * 7);
+
+      assertNull(s.put(bytes(k), bytes(v)));
+      expected.put(k, v);
+    }
+
+    assertEquals(expected.size(), s.size());
+
+    for (Map.Entry<String, String> ent: expected.entrySet()) {
+      assertEquals(ent.getValue(), str(s.get(bytes(ent.getKey()))));
+    }
+
+    /* Walk the slots */
+    int found = 0;
+    for (int i = 0; i < s.getSlots(); i++) {
+      byte[] k = s.key(i);
+
+      if (k == null) {
+        continue;
+      }
+
+      found++;
+      assertEquals(expected.get(str(k)), str(s.value(i)));
+    }
+
+    assertEquals(expected.size(), found);
+    assertTrue(s.memorySize() > 0);
+
+    if (s instanceof ByteStore.OffHeap) {
+      s.close();
+    }
+  }
+
+  private static byte[] bytes(final String val) throws Throwable {
+    return val.getBytes("UTF-8");
+  }
+
+  private static String str(final byte[] val) throws Throwable {
+    if (val == null) {
+      return null;
+    }
+
+    return new String(val, "UTF-8");
+  }
+}
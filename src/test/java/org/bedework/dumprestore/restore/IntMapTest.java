@@ -0,0 +1,178 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for IntMap and IntMultiMap
+ */
+public class IntMapTest {
+  /** */
+  @Test
+  public void testPutGet() {
+    IntMap<String> m = new IntMap<String>();
+
+    assertTrue(m.isEmpty());
+    assertNull(m.put(1, "a"));
+    assertNull(m.put(-7, "b"));
+    assertNull(m.put(0, "c"));
+
+    assertEquals(3, m.size());
+    assertEquals("a", m.get(1));
+    assertEquals("b", m.get(-7));
+    assertEquals("c", m.get(0));
+    assertNull(m.get(2));
+    assertFalse(m.containsKey(2));
+
+    assertEquals("a", m.put(1, "z"));
+    assertEquals("z", m.get(1));
+    assertEquals(3, m.size());
+  }
+
+  /** Keys which all land in the same slot of the initial table probe
+   * past each other and survive the rehashes.
+   */
+  @Test
+  public void testCollisionsAndRehash() {
+    List<Integer> keys = new ArrayList<Integer>();
+
+    for (int k = 0; keys.size() < 40; k++) {
+      if ((IntMap.hash(k) & 15) == 3) {
+        keys.add(k);
+      }
+    }
+
+    IntMap<Integer> m = new IntMap<Integer>();
+    long initialSize = m.memorySize();
+
+    for (int k: keys) {
+      m.put(k, k * 2);
+    }
+
+    assertTrue(m.memorySize() > initialSize);
+    assertEquals(keys.size(), m.size());
+
+    for (int k: keys) {
+      assertTrue(m.containsKey(k));
+      assertEquals(Integer.valueOf(k * 2), m.get(k));
+    }
+
+    for (int k = 0; k < 100000; k++) {
+      m.put(k, k * 2);
+    }
+
+    for (int k = 0; k < 100000; k++) {
+      assertEquals(Integer.valueOf(k * 2), m.get(k));
+    }
+
+    assertEquals(100000, m.size());
+  }
+
+  /** Integer.MIN_VALUE marks a free slot so is held outside the table */
+  @Test
+  public void testMinValueKey() {
+    IntMap<String> m = new IntMap<String>();
+
+    assertFalse(m.containsKey(Integer.MIN_VALUE));
+    assertNull(m.get(Integer.MIN_VALUE));
+
+    assertNull(m.put(Integer.MIN_VALUE, "min"));
+    m.put(Integer.MAX_VALUE, "max");
+
+    assertTrue(m.containsKey(Integer.MIN_VALUE));
+    assertEquals("min", m.get(Integer.MIN_VALUE));
+    assertEquals(2, m.size());
+
+    int[] keys = m.keys();
+    Arrays.sort(keys);
+    assertArrayEquals(new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}, keys);
+    assertTrue(m.values().contains("min"));
+
+    /* A null value is still an entry */
+    assertEquals("min", m.put(Integer.MIN_VALUE, null));
+    assertTrue(m.containsKey(Integer.MIN_VALUE));
+    assertEquals(2, m.size());
+
+    m.clear();
+    assertFalse(m.containsKey(Integer.MIN_VALUE));
+    assertTrue(m.isEmpty());
+  }
+
+  /** */
+  @Test
+  public void testKeysAndValues() {
+    IntMap<String> m = new IntMap<String>();
+
+    for (int k = 0; k < 50; k++) {
+      m.put(k * 1000, String.valueOf(k));
+    }
+
+    int[] keys = m.keys();
+    assertEquals(50, keys.length);
+    Arrays.sort(keys);
+
+    for (int k = 0; k < 50; k++) {
+      assertEquals(k * 1000, keys[k]);
+    }
+
+    assertEquals(50, m.values().size());
+  }
+
+  /** */
+  @Test
+  public void testMultiMap() {
+    IntMultiMap m = new IntMultiMap();
+
+    assertEquals(0, m.get(5).length);
+    assertFalse(m.containsKey(5));
+
+    /* Interleaved so the chains cross and the arrays grow */
+    for (int i = 0; i < 100; i++) {
+      m.put(i % 3, i);
+    }
+
+    m.put(Integer.MIN_VALUE, 42);
+
+    assertEquals(4, m.size());
+    assertEquals(101, m.numValues());
+    assertTrue(m.containsKey(Integer.MIN_VALUE));
+    assertArrayEquals(new int[]{42}, m.get(Integer.MIN_VALUE));
+
+    for (int key = 0; key < 3; key++) {
+      int[] vals = m.get(key);
+
+      for (int j = 0; j < vals.length; j++) {
+        assertEquals(key + (j * 3), vals[j]);
+      }
+    }
+
+    assertEquals(34, m.get(0).length);
+    assertEquals(33, m.get(2).length);
+  }
+}
@@ -0,0 +1,113 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for the onlyusers matching
+ */
+public class OnlyUsersMapTest {
+  private OnlyUsersMap m;
+
+  /** */
+  @Before
+  public void setUp() {
+    m = new OnlyUsersMap();
+    m.setOnlyUsers(true);
+  }
+
+  /** */
+  @Test
+  public void testOff() {
+    m.setOnlyUsers(false);
+
+    assertTrue(m.check("/principals/users/anyone"));
+  }
+
+  /** */
+  @Test
+  public void testExact() {
+    m.add("/principals/users/douglm");
+    m.add("/principals/users/johnsa");
+
+    assertTrue(m.check("/principals/users/douglm"));
+    assertTrue(m.check("/principals/users/johnsa"));
+
+    assertFalse(m.check("/principals/users/doug"));
+    assertFalse(m.check("/principals/users/douglm2"));
+    assertFalse(m.check("/principals/users/"));
+    assertFalse(m.check(""));
+    assertFalse(m.check((String)null));
+  }
+
+  /** */
+  @Test
+  public void testPrefix() {
+    m.add("/principals/users/a*");
+    m.add("/principals/users/admin");
+
+    assertTrue(m.check("/principals/users/a"));
+    assertTrue(m.check("/principals/users/agrp"));
+    assertTrue(m.check("/principals/users/admin"));
+
+    assertFalse(m.check("/principals/users/b"));
+    assertFalse(m.check("/principals/users/"));
+  }
+
+  /** A prefix on the path to an exact user still covers it */
+  @Test
+  public void testPrefixOfExact() {
+    m.add("/principals/users/douglm");
+    m.add("/principals/*");
+
+    assertTrue(m.check("/principals/users/douglm"));
+    assertTrue(m.check("/principals/groups/g1"));
+    assertFalse(m.check("/public/x"));
+  }
+
+  /** */
+  @Test
+  public void testAll() {
+    m.add("*");
+
+    assertTrue(m.check(""));
+    assertTrue(m.check("/principals/users/anyone"));
+  }
+
+  /** Results are remembered but adding a user forgets them */
+  @Test
+  public void testMemo() {
+    assertFalse(m.check("/principals/users/late"));
+    assertFalse(m.check("/principals/users/late"));
+
+    m.add("/principals/users/late");
+
+    assertTrue(m.check("/principals/users/late"));
+
+    for (int i = 0; i <= OnlyUsersMap.memoSize; i++) {
+      assertFalse(m.check("/principals/users/x" + i));
+    }
+
+    assertTrue(m.check("/principals/users/late"));
+  }
+}
@@ -0,0 +1,132 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for OwnerUidKey and its Probe
+ */
+public class OwnerUidKeyTest {
+  /** */
+  @Test
+  public void testEquals() {
+    OwnerUidKey a = new OwnerUidKey("/principals/users/douglm", "uid1");
+    OwnerUidKey b = new OwnerUidKey("/principals/users/douglm", "uid1");
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(0, a.compareTo(b));
+
+    assertFalse(a.equals(new OwnerUidKey("/principals/users/douglm", "uid2")));
+    assertFalse(a.equals(new OwnerUidKey("/principals/users/other", "uid1")));
+    assertFalse(a.equals(null));
+
+    /* Owner and uid are not interchangeable */
+    assertFalse(new OwnerUidKey("x", "y").equals(new OwnerUidKey("y", "x")));
+  }
+
+  /** */
+  @Test
+  public void testNulls() {
+    OwnerUidKey a = new OwnerUidKey(null, "uid1");
+    OwnerUidKey b = new OwnerUidKey(null, null);
+
+    assertEquals(a, new OwnerUidKey(null, "uid1"));
+    assertEquals(b, new OwnerUidKey(null, null));
+    assertFalse(a.equals(b));
+
+    assertTrue(b.compareTo(a) < 0);
+    assertTrue(a.compareTo(b) > 0);
+    assertTrue(a.compareTo(new OwnerUidKey("o", "uid1")) < 0);
+    assertTrue(a.compareTo(null) < 0);
+  }
+
+  /** */
+  @Test
+  public void testCompare() {
+    OwnerUidKey a = new OwnerUidKey("a", "2");
+    OwnerUidKey b = new OwnerUidKey("b", "1");
+    OwnerUidKey c = new OwnerUidKey("b", "2");
+
+    assertTrue(a.compareTo(b) < 0);
+    assertTrue(b.compareTo(c) < 0);
+    assertTrue(c.compareTo(a) > 0);
+  }
+
+  /** A refilled probe finds the stored keys */
+  @Test
+  public void testProbe() {
+    Map<OwnerUidKey, String> m = new HashMap<OwnerUidKey, String>();
+
+    m.put(new OwnerUidKey("/principals/users/douglm", "uid1"), "a");
+    m.put(new OwnerUidKey(null, "uid2"), "b");
+
+    OwnerUidKey.Probe p = new OwnerUidKey.Probe();
+
+    p.setOwnerHref("/principals/users/douglm");
+    p.setUid("uid1");
+    assertEquals("a", m.get(p));
+
+    /* Changing a field drops the cached hash */
+    p.setUid("uid2");
+    assertNull(m.get(p));
+
+    p.reset();
+    p.setUid("uid2");
+    assertEquals("b", m.get(p));
+
+    p.setOwnerHref("/principals/users/douglm");
+    assertNull(m.get(p));
+
+    /* Equal in both directions */
+    p.setUid("uid1");
+    OwnerUidKey k = new OwnerUidKey("/principals/users/douglm", "uid1");
+    assertTrue(k.equals(p));
+    assertTrue(p.equals(k));
+    assertEquals(k.hashCode(), p.hashCode());
+  }
+
+  /** key() copies - later changes to the probe don't affect it */
+  @Test
+  public void testProbeKey() {
+    OwnerUidKey.Probe p = new OwnerUidKey.Probe();
+
+    p.setOwnerHref("o");
+    p.setUid("u");
+
+    OwnerUidKey k = p.key();
+
+    assertFalse(k instanceof OwnerUidKey.Probe);
+
+    p.setUid("v");
+
+    assertEquals("o", k.getOwnerHref());
+    assertEquals("u", k.getUid());
+    assertEquals(new OwnerUidKey("o", "u"), k);
+    assertEquals(new OwnerUidKey("o", "u").hashCode(), k.hashCode());
+  }
+}
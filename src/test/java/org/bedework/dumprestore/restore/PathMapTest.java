@@ -0,0 +1,108 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Tests for PathMap
+ */
+public class PathMapTest {
+  /** */
+  @Test
+  public void testPutGet() {
+    PathMap<String> m = new PathMap<String>();
+
+    assertNull(m.put("/user/douglm/calendar", "cal"));
+    assertNull(m.put("/user/douglm", "home"));
+    assertNull(m.put("/user/douglm/cal", "short"));
+
+    assertEquals("cal", m.get("/user/douglm/calendar"));
+    assertEquals("home", m.get("/user/douglm"));
+    assertEquals("short", m.get("/user/douglm/cal"));
+
+    /* Prefixes and extensions of a stored path are not stored */
+    assertNull(m.get("/user"));
+    assertNull(m.get("/user/douglm/calendar/x"));
+    assertNull(m.get("/user/douglm/calendars"));
+
+    assertEquals(3, m.size());
+
+    assertEquals("cal", m.put("/user/douglm/calendar", "cal2"));
+    assertEquals(3, m.size());
+  }
+
+  /** Empty segments are skipped so a trailing or doubled "/" is the same
+   * path.
+   */
+  @Test
+  public void testSlashes() {
+    PathMap<String> m = new PathMap<String>();
+
+    m.put("/public/cals/", "cals");
+
+    assertEquals("cals", m.get("/public/cals"));
+    assertEquals("cals", m.get("/public//cals/"));
+  }
+
+  /** */
+  @Test
+  public void testRemove() {
+    PathMap<String> m = new PathMap<String>();
+
+    m.put("/a/b", "ab");
+    m.put("/a/b/c", "abc");
+
+    assertEquals("ab", m.remove("/a/b"));
+    assertNull(m.get("/a/b"));
+    assertEquals("abc", m.get("/a/b/c"));
+    assertEquals(1, m.size());
+
+    assertNull(m.remove("/a/x"));
+    assertEquals(1, m.size());
+
+    m.clear();
+    assertEquals(0, m.size());
+    assertNull(m.get("/a/b/c"));
+  }
+
+  /** Nodes switch from a scanned array to a hash past 8 children
+   */
+  @Test
+  public void testManyChildren() {
+    PathMap<Integer> m = new PathMap<Integer>();
+
+    for (int i = 0; i < 100; i++) {
+      m.put("/user/u" + i + "/calendar", i);
+      m.put("/user/u" + i + "/Inbox", -i);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), m.get("/user/u" + i + "/calendar"));
+      assertEquals(Integer.valueOf(-i), m.get("/user/u" + i + "/Inbox"));
+    }
+
+    assertEquals(200, m.size());
+
+    /* user, calendar, Inbox and the 100 user names */
+    assertEquals(103, m.numSegments());
+  }
+}
@@ -0,0 +1,170 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for SpillMap and IntSpillMap moving from the heap to off-heap and
+ * mapped stores.
+ */
+public class SpillMapTest {
+  private File dir;
+
+  private TableStores stores;
+
+  /**
+   * @throws Throwable
+   */
+  @Before
+  public void setUp() throws Throwable {
+    dir = File.createTempFile("bwrestore-test", "");
+    dir.delete();
+    dir.mkdir();
+
+    stores = new TableStores();
+    stores.dir = dir;
+    stores.spillThreshold = 100;
+    stores.mappedThreshold = 1000;
+
+    /* Don't let the test JVM's direct memory limit decide */
+    stores.offHeapLimit = Long.MAX_VALUE;
+  }
+
+  /**
+   * @throws Throwable
+   */
+  @After
+  public void tearDown() throws Throwable {
+    stores.closeAll();
+
+    for (File f: dir.listFiles()) {
+      f.delete();
+    }
+
+    dir.delete();
+  }
+
+  /**
+   */
+  @Test
+  public void testSpillAndMap() {
+    SpillMap<OwnerUidKey, String> m =
+      new SpillMap<OwnerUidKey, String>(stores, "uids",
+                                        Codec.ownerUidKey, Codec.string);
+    Map<OwnerUidKey, String> expected = new HashMap<OwnerUidKey, String>();
+
+    for (int i = 0; i < 2000; i++) {
+      if (i == 50) {
+        assertEquals("heap", m.getKind());
+        check(m, expected);
+      } else if (i == 500) {
+        assertEquals("off-heap", m.getKind());
+        check(m, expected);
+      }
+
+      OwnerUidKey k = new OwnerUidKey("/principals/users/u" + (i % 10),
+                                      "uid" + i);
+      String v = (i % 17 == 0) ? null : "new-uid" + i;
+
+      assertNull(m.put(k, v));
+      expected.put(k, v);
+    }
+
+    assertTrue(m.getKind().startsWith("mapped"));
+    check(m, expected);
+
+    /* Replace */
+    OwnerUidKey k = new OwnerUidKey("/principals/users/u1", "uid1");
+    assertEquals("new-uid1", m.put(k, "x"));
+    assertEquals("x", m.get(k));
+    assertEquals(2000, m.size());
+
+    /* A probe finds the stored key */
+    OwnerUidKey.Probe p = new OwnerUidKey.Probe();
+    p.setOwnerHref("/principals/users/u1");
+    p.setUid("uid1");
+    assertEquals("x", m.get(p));
+
+    m.clear();
+    assertEquals("heap", m.getKind());
+    assertEquals(0, m.size());
+    assertFalse(m.containsKey(k));
+  }
+
+  /**
+   */
+  @Test
+  public void testIntSpillMap() {
+    IntSpillMap<String> m = new IntSpillMap<String>(stores, "ids",
+                                                    Codec.string);
+
+    m.put(Integer.MIN_VALUE, "min");
+    m.put(-1, "minus one");
+
+    for (int i = 0; i < 1500; i++) {
+      m.put(i, "v" + i);
+
+      if (i == 500) {
+        assertEquals("off-heap", m.getKind());
+      }
+    }
+
+    assertTrue(m.getKind().startsWith("mapped"));
+    assertEquals(1502, m.size());
+
+    assertEquals("min", m.get(Integer.MIN_VALUE));
+    assertEquals("minus one", m.get(-1));
+    assertTrue(m.containsKey(Integer.MIN_VALUE));
+    assertFalse(m.containsKey(Integer.MAX_VALUE));
+
+    for (int i = 0; i < 1500; i++) {
+      assertEquals("v" + i, m.get(i));
+    }
+  }
+
+  private void check(final SpillMap<OwnerUidKey, String> m,
+                     final Map<OwnerUidKey, String> expected) {
+    assertEquals(expected.size(), m.size());
+
+    for (Map.Entry<OwnerUidKey, String> ent: expected.entrySet()) {
+      assertTrue(m.containsKey(ent.getKey()));
+      assertEquals(ent.getValue(), m.get(ent.getKey()));
+    }
+
+    /* And back out through the iterator */
+    Map<OwnerUidKey, String> copy = new HashMap<OwnerUidKey, String>();
+
+    for (Map.Entry<OwnerUidKey, String> ent: m.entrySet()) {
+      copy.put(ent.getKey(), ent.getValue());
+    }
+
+    assertEquals(expected, copy);
+  }
+}
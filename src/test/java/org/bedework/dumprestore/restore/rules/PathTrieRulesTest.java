@@ -0,0 +1,127 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.dumprestore.restore.rules;
+
+import org.apache.commons.digester.Rule;
+import org.apache.commons.digester.RulesBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for PathTrieRules
+ */
+public class PathTrieRulesTest {
+  private CountingRules base;
+
+  private PathTrieRules rules;
+
+  private Rule eventRule = new Rule() {};
+
+  private Rule summaryRule = new Rule() {};
+
+  private Rule anyRule = new Rule() {};
+
+  /* Counts the matches that get through to it */
+  private static class CountingRules extends RulesBase {
+    int matches;
+
+    @Override
+    public List match(final String namespaceURI, final String pattern) {
+      matches++;
+      return super.match(namespaceURI, pattern);
+    }
+  }
+
+  /** */
+  @Before
+  public void setUp() {
+    base = new CountingRules();
+    rules = new PathTrieRules(base);
+
+    rules.add("caldata/events/event", eventRule);
+    rules.add("caldata/events/event/summary", summaryRule);
+    rules.add("*/value", anyRule);
+  }
+
+  /** Results are those of the wrapped rules and repeats are cached */
+  @Test
+  public void testMatch() {
+    List l = rules.match(null, "caldata/events/event/summary");
+
+    assertEquals(1, l.size());
+    assertSame(summaryRule, l.get(0));
+    assertEquals(1, base.matches);
+
+    assertSame(l, rules.match(null, "caldata/events/event/summary"));
+    assertEquals(1, base.matches);
+
+    l = rules.match(null, "caldata/events/event");
+    assertSame(eventRule, l.get(0));
+    assertEquals(2, base.matches);
+
+    l = rules.match(null, "caldata/x/value");
+    assertSame(anyRule, l.get(0));
+    assertEquals(3, base.matches);
+
+    assertTrue(rules.match(null, "caldata/events").isEmpty());
+    assertEquals(4, base.matches);
+  }
+
+  /** Segments which are prefixes of each other are different nodes */
+  @Test
+  public void testSimilarSegments() {
+    rules.add("caldata/events/eventx", anyRule);
+
+    assertSame(anyRule, rules.match(null, "caldata/events/eventx").get(0));
+    assertSame(eventRule, rules.match(null, "caldata/events/event").get(0));
+    assertTrue(rules.match(null, "caldata/events/even").isEmpty());
+    assertTrue(rules.match(null, "caldata/events/event/").isEmpty());
+  }
+
+  /** Adding a rule discards the cached results */
+  @Test
+  public void testAdd() {
+    rules.match(null, "caldata/events/event");
+
+    Rule r = new Rule() {};
+    rules.add("caldata/events/event", r);
+
+    List l = rules.match(null, "caldata/events/event");
+    assertEquals(2, l.size());
+    assertSame(r, l.get(1));
+  }
+
+  /** Only one namespace is cached */
+  @Test
+  public void testNamespace() {
+    rules.match(null, "caldata/events/event");
+    rules.match("urn:x", "caldata/events/event");
+    rules.match("urn:x", "caldata/events/event");
+
+    assertEquals(3, base.matches);
+
+    rules.match(null, "caldata/events/event");
+    assertEquals(3, base.matches);
+  }
+}